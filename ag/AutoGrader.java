@@ -198,6 +198,16 @@ public class AutoGrader {
 	privilege.tcb.authorizeDestroy(currentThread);
     }
 
+    /**
+     * Notify the autograder that the specified real-time thread has missed a
+     * deadline. Counts the miss in the machine's statistics.
+     *
+     * @param	thread	the thread that missed a deadline.
+     */
+    public void deadlineMissed(KThread thread) {
+	privilege.stats.numDeadlineMisses++;
+    }
+
     /**
      * Notify the autograder that a timer interrupt occurred and was handled by
      * software if a timer interrupt handler was installed. Called by the
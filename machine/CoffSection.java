@@ -180,7 +180,6 @@ public class CoffSection {
 	Lib.assertTrue(ppn>=0 && ppn<Machine.processor().getNumPhysPages());
 
 	int pageSize = Processor.pageSize;
-	byte[] memory = Machine.processor().getMemory();
 	int paddr = ppn*pageSize;
 	int faddr = contentOffset + spn*pageSize;
 	int initlen;
@@ -196,10 +195,29 @@ public class CoffSection {
 	else
 	    initlen = pageSize;
 
+	Processor processor = Machine.processor();
+
+	// load straight into memory if it is an array
+	if (processor.hasMemoryArray()) {
+	    byte[] memory = processor.getMemory();
+
+	    if (initlen > 0)
+		Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+
+	    Arrays.fill(memory, paddr+initlen, paddr+pageSize, (byte) 0);
+	    return;
+	}
+
+	if (pageBuffer == null)
+	    pageBuffer = new byte[pageSize];
+
 	if (initlen > 0)
-	    Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+	    Lib.strictReadFile(file, faddr, pageBuffer, 0, initlen);
+
+	// the rest of the page is zero-filled
+	Arrays.fill(pageBuffer, initlen, pageSize, (byte) 0);
 
-	Arrays.fill(memory, paddr+initlen, paddr+pageSize, (byte) 0);
+	processor.writeMemory(paddr, pageBuffer, 0, pageSize);
     }
 
     /** The COFF object to which this section belongs. */
@@ -220,6 +238,8 @@ public class CoffSection {
 
     private OpenFile file;
     private int contentOffset, size;
+    /** A page read from the file, when memory is not a Java array. */
+    private byte[] pageBuffer = null;
 
     /** The length of a COFF section header. */
     public static final int headerLength = 40;
@@ -32,6 +32,9 @@ public final class ElevatorBank implements Runnable {
 	
 	this.privilege = privilege;
 
+	elevatorType = privilege.interrupt.registerType("elevator");
+	riderType = privilege.interrupt.registerType("rider");
+
 	simulationStarted = false;
     }
 
@@ -261,7 +264,7 @@ public final class ElevatorBank implements Runnable {
 	}
 
 	void schedule(int when) {
-	    privilege.interrupt.schedule(when, "elevator", interrupt);
+	    privilege.interrupt.schedule(when, elevatorType, interrupt);
 	}
 
         void postEvent(int event, int floor, int elevator, boolean schedule) {
@@ -284,8 +287,8 @@ public final class ElevatorBank implements Runnable {
 		    else {
 			elevators[i].nextETA += Stats.ElevatorTicks;
 			privilege.interrupt.schedule(Stats.ElevatorTicks,
-						   "elevator",
-						   interrupt);
+						     elevatorType,
+						     interrupt);
 		    }
 		}
 	    }
@@ -573,7 +576,7 @@ public final class ElevatorBank implements Runnable {
 	}
 
 	void schedule(int when) {
-	    privilege.interrupt.schedule(when, "rider", interrupt);
+	    privilege.interrupt.schedule(when, riderType, interrupt);
 	}
 
 	void interrupt() {
@@ -616,5 +619,6 @@ public final class ElevatorBank implements Runnable {
     
     private boolean simulationStarted, enableGui;
     private Privilege privilege;
+    private int elevatorType, riderType;
     private ElevatorGui gui;
 }
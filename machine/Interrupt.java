@@ -4,9 +4,9 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +53,18 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+
+	eventTime = new long[initialEvents];
+	eventId = new long[initialEvents];
+	eventType = new int[initialEvents];
+	eventHandler = new Runnable[initialEvents];
+	eventGeneration = new int[initialEvents];
+	eventIndex = new int[initialEvents];
+	eventNextFree = new int[initialEvents];
+	heap = new int[initialEvents];
+
+	for (int i=initialEvents-1; i>=0; i--)
+	    freeEvent(i);
     }
 
     /**
@@ -120,17 +131,193 @@ public final class Interrupt {
 	return !enabled;
     }
 
-    private void schedule(long when, String type, Runnable handler) {
+    /**
+     * Skip ahead to the next pending interrupt, for a kernel that has
+     * nothing to do until then. The simulated time advances by the same
+     * kernel ticks that enabling and disabling interrupts in a loop would
+     * have produced, stopping just before the tick on which the next
+     * interrupt becomes due, so the next time interrupts are enabled it runs
+     * exactly when it would have. Interrupts must be enabled.
+     */
+    public void idle() {
+	Lib.assertTrue(enabled);
+
+	// the interrupt trace prints every tick
+	if (heapSize == 0 || Lib.test(dbgInt))
+	    return;
+
+	Stats stats = privilege.stats;
+	long ticks = (eventTime[heap[0]] - stats.totalTicks - 1) /
+	    Stats.KernelTick;
+
+	if (ticks > 0) {
+	    stats.kernelTicks += ticks*Stats.KernelTick;
+	    stats.totalTicks += ticks*Stats.KernelTick;
+	}
+    }
+
+    private int registerType(String name) {
+	Integer type = typeNumbers.get(name);
+	if (type == null) {
+	    type = typeNames.size();
+	    typeNames.add(name);
+	    typeNumbers.put(name, type);
+	}
+
+	return type;
+    }
+
+    private long schedule(long when, int type, Runnable handler) {
 	Lib.assertTrue(when>0);
+	Lib.assertTrue(type >= 0 && type < typeNames.size());
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
-	Lib.debug(dbgInt,
-		  "Scheduling the " + type +
-		  " interrupt handler at time = " + time);
+	if (Lib.test(dbgInt))
+	    System.out.println("Scheduling the " + typeNames.get(type) +
+			       " interrupt handler at time = " + time);
+
+	int event = allocateEvent();
+	eventTime[event] = time;
+	eventId[event] = numPendingInterruptsCreated++;
+	eventType[event] = type;
+	eventHandler[event] = handler;
+
+	heap[heapSize] = event;
+	siftUp(heapSize++);
+
+	return ((long) eventGeneration[event] << 32) | event;
+    }
+
+    private boolean cancel(long handle) {
+	int event = (int) handle;
+	int generation = (int) (handle >>> 32);
+
+	// the handle of an interrupt that already occurred is stale
+	if (event < 0 || event >= eventTime.length ||
+	    eventGeneration[event] != generation || eventIndex[event] == -1)
+	    return false;
+
+	if (Lib.test(dbgInt))
+	    System.out.println("Cancelling the " + typeNames.get(eventType[event])
+			       + " interrupt handler scheduled at time = "
+			       + eventTime[event]);
 
-	pending.add(toOccur);
+	removeAt(eventIndex[event]);
+	freeEvent(event);
+	return true;
+    }
+
+    /**
+     * Return an unused event slot, growing the event arrays if there are
+     * none. Slots are reused, so scheduling an interrupt does not normally
+     * allocate anything.
+     */
+    private int allocateEvent() {
+	if (freeEvents == -1) {
+	    int oldSize = eventTime.length, newSize = oldSize*2;
+
+	    eventTime = Arrays.copyOf(eventTime, newSize);
+	    eventId = Arrays.copyOf(eventId, newSize);
+	    eventType = Arrays.copyOf(eventType, newSize);
+	    eventHandler = Arrays.copyOf(eventHandler, newSize);
+	    eventGeneration = Arrays.copyOf(eventGeneration, newSize);
+	    eventIndex = Arrays.copyOf(eventIndex, newSize);
+	    eventNextFree = Arrays.copyOf(eventNextFree, newSize);
+	    heap = Arrays.copyOf(heap, newSize);
+
+	    for (int i=oldSize; i<newSize; i++)
+		freeEvent(i);
+	}
+
+	int event = freeEvents;
+	freeEvents = eventNextFree[event];
+	return event;
+    }
+
+    /**
+     * Return a slot to the unused list. Its generation changes, so handles
+     * to the interrupt it held can no longer cancel anything.
+     */
+    private void freeEvent(int event) {
+	eventHandler[event] = null;
+	eventIndex[event] = -1;
+	eventGeneration[event] = Math.max(1, (eventGeneration[event]+1) &
+					  Integer.MAX_VALUE);
+	eventNextFree[event] = freeEvents;
+	freeEvents = event;
+    }
+
+    /**
+     * Return <tt>true</tt> if event <i>a</i> is due before event <i>b</i>.
+     * Events due at the same time occur in the order they were scheduled.
+     */
+    private boolean before(int a, int b) {
+	return eventTime[a] < eventTime[b] ||
+	    (eventTime[a] == eventTime[b] && eventId[a] < eventId[b]);
+    }
+
+    private void siftUp(int index) {
+	int event = heap[index];
+
+	while (index > 0) {
+	    int parent = (index-1) / heapArity;
+	    if (!before(event, heap[parent]))
+		break;
+
+	    heap[index] = heap[parent];
+	    eventIndex[heap[index]] = index;
+	    index = parent;
+	}
+
+	heap[index] = event;
+	eventIndex[event] = index;
+    }
+
+    private void siftDown(int index) {
+	int event = heap[index];
+
+	while (true) {
+	    int first = index*heapArity + 1;
+	    if (first >= heapSize)
+		break;
+
+	    int last = Math.min(first + heapArity, heapSize);
+	    int child = first;
+	    for (int i=first+1; i<last; i++) {
+		if (before(heap[i], heap[child]))
+		    child = i;
+	    }
+
+	    if (!before(heap[child], event))
+		break;
+
+	    heap[index] = heap[child];
+	    eventIndex[heap[index]] = index;
+	    index = child;
+	}
+
+	heap[index] = event;
+	eventIndex[event] = index;
+    }
+
+    private int removeFirst() {
+	int event = heap[0];
+	removeAt(0);
+	return event;
+    }
+
+    private void removeAt(int index) {
+	int last = heap[--heapSize];
+	if (index == heapSize)
+	    return;
+
+	int removed = heap[index];
+	heap[index] = last;
+	if (before(last, removed))
+	    siftUp(index);
+	else
+	    siftDown(index);
     }
 
     private void tick(boolean inKernelMode) {
@@ -153,6 +340,28 @@ public final class Interrupt {
 	enabled = true;
     }
 
+    private long nextPendingTime() {
+	if (heapSize == 0)
+	    return Long.MAX_VALUE;
+
+	return eventTime[heap[0]];
+    }
+
+    private void settleUserTicks(long ticks) {
+	if (ticks == 0)
+	    return;
+
+	Stats stats = privilege.stats;
+
+	stats.userTicks += ticks*Stats.UserTick;
+	stats.totalTicks += ticks*Stats.UserTick;
+
+	// none of the skipped ticks could have run a handler
+	Lib.assertTrue(nextPendingTime() > stats.totalTicks);
+
+	enabled = true;
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
@@ -161,27 +370,30 @@ public final class Interrupt {
 	if (Lib.test(dbgInt))
 	    print();
 
-	if (pending.isEmpty())
+	if (heapSize == 0)
 	    return;
 
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (eventTime[heap[0]] > time)
 	    return;
 
-	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
+	if (Lib.test(dbgInt))
+	    System.out.println("Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
+	while (heapSize > 0 && eventTime[heap[0]] <= time) {
+	    int next = removeFirst();
+	    int type = eventType[next];
+	    Runnable handler = eventHandler[next];
 
-	    Lib.assertTrue(next.time <= time);
+	    // the handler may schedule another interrupt in this slot
+	    freeEvent(next);
 
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    if (Lib.test(dbgInt))
+		System.out.println("  " + typeNames.get(type));
 			
-	    next.handler.run();
+	    handler.run();
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
@@ -192,62 +404,88 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
-	    System.out.println("  " + toOccur.type +
-			       ", scheduled at " + toOccur.time);
-	}
-
-	System.out.println("  (end of list)");
-    }
-
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
+	// the heap is only partly ordered, so sort a copy
+	int[] sorted = Arrays.copyOf(heap, heapSize);
+	for (int i=1; i<sorted.length; i++) {
+	    int event = sorted[i], j;
+	    for (j=i; j>0 && before(event, sorted[j-1]); j--)
+		sorted[j] = sorted[j-1];
+	    sorted[j] = event;
 	}
 
-	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
-
-	    // can't return 0 for unequal objects, so check all fields
-	    if (time < toOccur.time)
-		return -1;
-	    else if (time > toOccur.time)
-		return 1;
-	    else if (id < toOccur.id)
-		return -1;
-	    else if (id > toOccur.id)
-		return 1;
-	    else
-		return 0;
+	for (int i=0; i<sorted.length; i++) {
+	    System.out.println("  " + typeNames.get(eventType[sorted[i]]) +
+			       ", scheduled at " + eventTime[sorted[i]]);
 	}
 
-	long time;
-	String type;
-	Runnable handler;
-
-	private long id;
+	System.out.println("  (end of list)");
     }
-    
+
     private long numPendingInterruptsCreated = 0;
 
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+
+    /**
+     * Pending interrupts are kept in slots of these parallel arrays, and
+     * ordered by time and then by <tt>eventId</tt>, the order in which they
+     * were scheduled.
+     */
+    private long[] eventTime;
+    private long[] eventId;
+    private int[] eventType;
+    private Runnable[] eventHandler;
+    /** Changes each time a slot is reused, to tell stale handles apart. */
+    private int[] eventGeneration;
+    /** The position of each pending interrupt in the heap, or -1. */
+    private int[] eventIndex;
+    /** The next unused slot after each unused slot, or -1. */
+    private int[] eventNextFree;
+    /** The first unused slot, or -1. */
+    private int freeEvents = -1;
+
+    /** The slots of the pending interrupts, as a <tt>heapArity</tt>-ary heap. */
+    private int[] heap;
+    private int heapSize = 0;
+
+    private static final int initialEvents = 16;
+    private static final int heapArity = 4;
+
+    /** The name of each interrupt type, indexed by type number. */
+    private ArrayList<String> typeNames = new ArrayList<String>();
+    private HashMap<String, Integer> typeNumbers =
+	new HashMap<String, Integer>();
 
     private static final char dbgInt = 'i';
 
     private class InterruptPrivilege implements Privilege.InterruptPrivilege {
-	public void schedule(long when, String type, Runnable handler) {
-	    Interrupt.this.schedule(when, type, handler);
+	public int registerType(String name) {
+	    return Interrupt.this.registerType(name);
+	}
+
+	public long schedule(long when, int type, Runnable handler) {
+	    return Interrupt.this.schedule(when, type, handler);
+	}
+
+	public long schedule(long when, String type, Runnable handler) {
+	    return Interrupt.this.schedule(when, registerType(type), handler);
+	}
+
+	public boolean cancel(long handle) {
+	    return Interrupt.this.cancel(handle);
 	}
 
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public long nextPendingTime() {
+	    return Interrupt.this.nextPendingTime();
+	}
+
+	public void settleUserTicks(long ticks) {
+	    Interrupt.this.settleUserTicks(ticks);
+	}
     }
 }
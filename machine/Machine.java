@@ -6,10 +6,19 @@ import nachos.security.*;
 import nachos.ag.*;
 
 import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedList;
 
 /**
  * The master class of the simulated machine. Processes command line arguments,
  * constructs all simulated hardware devices, and starts the grader.
+ *
+ * <p>
+ * There is exactly one machine in each JVM. Its devices are reached through
+ * the static methods of this class, and so is every kernel. The
+ * <tt>NachosSecurityManager</tt> is installed for the whole JVM, and halting
+ * the machine exits the JVM. To run many simulations at once, run them in
+ * separate JVMs.
  */
 public final class Machine {
     /**
@@ -20,7 +29,8 @@ public final class Machine {
     public static void main(final String[] args) {
 	System.out.print("nachos 5.0j initializing...");
 	
-	Lib.assertTrue(Machine.args == null);
+	Lib.assertTrue(Machine.args == null,
+		       "only one Nachos machine can run in each JVM");
 	Machine.args = args;
 
 	processArgs();
@@ -92,9 +102,22 @@ public final class Machine {
     }
 
     /**
-     * Print stats, and terminate Nachos.
+     * Add a handler to be called when the machine halts, before the stats
+     * are printed. Handlers are called in the order they were added.
+     *
+     * @param	handler	the halt handler.
+     */
+    public static void addHaltHandler(Runnable handler) {
+	haltHandlers.add(handler);
+    }
+
+    /**
+     * Call the halt handlers, print stats, and terminate Nachos.
      */
     public static void halt() {
+	for (Iterator i=haltHandlers.iterator(); i.hasNext(); )
+	    ((Runnable) i.next()).run();
+
 	System.out.print("Machine halting!\n\n");
 	stats.print();
 	terminate();
@@ -410,6 +433,9 @@ public final class Machine {
 
     private static Stats stats = new Stats();
 
+    private static LinkedList<Runnable> haltHandlers =
+	new LinkedList<Runnable>();
+
     private static int numPhysPages = -1;
     private static long randomSeed = 0;
 
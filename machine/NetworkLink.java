@@ -106,6 +106,9 @@ public class NetworkLink {
 
 	System.out.print("(" + linkAddress + ")");
 
+	receiveType = privilege.interrupt.registerType("network recv");
+	sendType = privilege.interrupt.registerType("network send");
+
 	receiveInterrupt = new Runnable() {
 		public void run() { receiveInterrupt(); }
 	    };
@@ -156,7 +159,7 @@ public class NetworkLink {
     }
 
     private void scheduleReceiveInterrupt() {
-	privilege.interrupt.schedule(Stats.NetworkTime, "network recv",
+	privilege.interrupt.schedule(Stats.NetworkTime, receiveType,
 				     receiveInterrupt);
     }
 
@@ -240,7 +243,7 @@ public class NetworkLink {
     }		
     
     private void scheduleSendInterrupt() {
-	privilege.interrupt.schedule(Stats.NetworkTime, "network send",
+	privilege.interrupt.schedule(Stats.NetworkTime, sendType,
 				     sendInterrupt);
     }
 
@@ -311,6 +314,7 @@ public class NetworkLink {
 
     private Runnable receiveInterrupt;
     private Runnable sendInterrupt;
+    private int receiveType, sendType;
 
     private Runnable receiveInterruptHandler = null;
     private Runnable sendInterruptHandler = null;
@@ -0,0 +1,198 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * The physical memory attached to a <tt>Processor</tt>. Memory is a
+ * little-endian byte buffer, kept in one of three places, chosen by
+ * <tt>Processor.memory</tt> in <tt>nachos.conf</tt>:
+ *
+ * <ul>
+ * <li><tt>heap</tt>, the default, is an ordinary byte array, which the kernel
+ * can also access directly through <tt>Processor.getMemory()</tt>.
+ * <li><tt>direct</tt> is allocated outside the Java heap, so even a very
+ * large memory adds nothing to garbage collection.
+ * <li><tt>mapped</tt> is a file, named by <tt>Processor.memoryFile</tt>, that
+ * is mapped into the address space, so memory can exceed what the JVM is
+ * allowed to allocate and can be examined after Nachos exits.
+ * </ul>
+ *
+ * Words are read and written whole rather than assembled a byte at a time.
+ */
+final class PhysicalMemory {
+    /**
+     * Allocate a new physical memory of the specified size.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	size		the size of the memory, in bytes.
+     */
+    PhysicalMemory(Privilege privilege, int size) {
+	String backend = Config.getString("Processor.memory", "heap");
+
+	if (backend.equals("heap")) {
+	    array = new byte[size];
+	    buffer = ByteBuffer.wrap(array);
+	}
+	else if (backend.equals("direct")) {
+	    array = null;
+	    buffer = ByteBuffer.allocateDirect(size);
+	}
+	else if (backend.equals("mapped")) {
+	    array = null;
+	    buffer = map(privilege,
+			 Config.getString("Processor.memoryFile", "nachos.mem"),
+			 size);
+	}
+	else {
+	    array = null;
+	    buffer = null;
+	    Lib.assertNotReached("Processor.memory must be heap, direct or "
+				 + "mapped");
+	}
+
+	buffer.order(ByteOrder.LITTLE_ENDIAN);
+	this.size = size;
+    }
+
+    private static ByteBuffer map(Privilege privilege, final String name,
+				  final int size) {
+	final ByteBuffer[] mapped = new ByteBuffer[1];
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			RandomAccessFile file = new RandomAccessFile(name, "rw");
+
+			// start from zeroed memory, like the other backends
+			file.setLength(0);
+			file.setLength(size);
+
+			mapped[0] = file.getChannel().map(
+			    FileChannel.MapMode.READ_WRITE, 0, size);
+			file.close();
+		    }
+		    catch (IOException e) {
+		    }
+		}
+	    });
+
+	Lib.assertTrue(mapped[0] != null,
+		       "unable to map physical memory file " + name);
+	return mapped[0];
+    }
+
+    /**
+     * Return the size of this memory.
+     *
+     * @return	the size of this memory, in bytes.
+     */
+    int getSize() {
+	return size;
+    }
+
+    /**
+     * Return the array backing this memory, if it is on the heap.
+     *
+     * @return	the backing array, or <tt>null</tt> if this memory is not on
+     *		the heap.
+     */
+    byte[] array() {
+	return array;
+    }
+
+    /**
+     * Read a little-endian value of the specified size. Like
+     * <tt>Lib.bytesToInt()</tt>, bytes and halfwords are sign-extended.
+     *
+     * @param	paddr	the physical address to read.
+     * @param	length	the size of the value (1, 2, or 4).
+     * @return	the value read.
+     */
+    int read(int paddr, int length) {
+	switch (length) {
+	case 1:
+	    return buffer.get(paddr);
+	case 2:
+	    return buffer.getShort(paddr);
+	case 4:
+	    return buffer.getInt(paddr);
+	default:
+	    Lib.assertNotReached();
+	    return -1;
+	}
+    }
+
+    /**
+     * Write a little-endian value of the specified size.
+     *
+     * @param	paddr	the physical address to write.
+     * @param	length	the size of the value (1, 2, or 4).
+     * @param	value	the value to write.
+     */
+    void write(int paddr, int length, int value) {
+	switch (length) {
+	case 1:
+	    buffer.put(paddr, (byte) value);
+	    break;
+	case 2:
+	    buffer.putShort(paddr, (short) value);
+	    break;
+	case 4:
+	    buffer.putInt(paddr, value);
+	    break;
+	default:
+	    Lib.assertNotReached();
+	}
+    }
+
+    /**
+     * Copy bytes from this memory into an array.
+     *
+     * @param	paddr	the first physical address to copy from.
+     * @param	data	the array to copy into.
+     * @param	offset	the first byte to write in the array.
+     * @param	length	the number of bytes to copy.
+     */
+    void read(int paddr, byte[] data, int offset, int length) {
+	if (array != null) {
+	    System.arraycopy(array, paddr, data, offset, length);
+	}
+	else {
+	    ByteBuffer view = buffer.duplicate();
+	    view.position(paddr);
+	    view.get(data, offset, length);
+	}
+    }
+
+    /**
+     * Copy bytes from an array into this memory.
+     *
+     * @param	paddr	the first physical address to copy to.
+     * @param	data	the array to copy from.
+     * @param	offset	the first byte to read from the array.
+     * @param	length	the number of bytes to copy.
+     */
+    void write(int paddr, byte[] data, int offset, int length) {
+	if (array != null) {
+	    System.arraycopy(data, offset, array, paddr, length);
+	}
+	else {
+	    ByteBuffer view = buffer.duplicate();
+	    view.position(paddr);
+	    view.put(data, offset, length);
+	}
+    }
+
+    private final byte[] array;
+    private final ByteBuffer buffer;
+    private final int size;
+}
@@ -45,12 +45,39 @@ public final class Processor {
 	for (int i=0; i<numUserRegisters; i++)
 	    registers[i] = 0;
 
-	mainMemory = new byte[pageSize * numPhysPages];
+	Lib.assertTrue(numPhysPages <= Integer.MAX_VALUE / pageSize,
+		       "too many physical pages");
+	memory = new PhysicalMemory(privilege, pageSize * numPhysPages);
+	decodeCache = new Decoded[numPhysPages][];
+
+	// the micro-TLB would hide translations from the processor trace
+	useMicroTLB = !Lib.test(dbgProcessor);
+
+	// the interrupt trace prints every tick
+	batchTicks = Config.getBoolean("Processor.batchTicks", false)
+	    && !Lib.test(dbgInterrupt);
 
 	if (usingTLB) {
+	    tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+	    tlbAssociativity = Config.getInteger("Processor.tlbAssociativity",
+						 tlbSize);
+	    Lib.assertTrue(tlbSize > 0 && tlbAssociativity > 0 &&
+			   tlbSize % tlbAssociativity == 0,
+			   "bad TLB size or associativity");
+	    
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
 		translations[i] = new TranslationEntry();
+
+	    tlbTags = new int[tlbSize];
+	    tlbChain = new int[tlbSize];
+
+	    int numBuckets = 1;
+	    while (numBuckets < tlbSize*2)
+		numBuckets *= 2;
+	    tlbBuckets = new int[numBuckets];
+	    for (int i=0; i<numBuckets; i++)
+		tlbBuckets[i] = -1;
 	}
 	else {
 	    translations = null;
@@ -92,19 +119,66 @@ public final class Processor {
 	Machine.autoGrader().runProcessor(privilege);
 
 	Instruction inst = new Instruction();
+
+	resetTickBudget();
 	
 	while (true) {
-	    try {
-		inst.run();
-	    }
-	    catch (MipsException e) {
-		e.handle();
+	    inst.run();
+
+	    if (trapped) {
+		// the kernel may read the time or schedule interrupts
+		settleTicks();
+		handleTrap();
+		resetTickBudget();
 	    }
 
+	    userTick();
+	}
+    }
+
+    /**
+     * Advance the simulated time by one user tick. If ticks are being
+     * batched and no interrupt can become due, just count the tick;
+     * otherwise settle the counted ticks and tick the interrupt controller,
+     * which may run interrupt handlers and switch threads.
+     */
+    private void userTick() {
+	if (tickBudget > 0) {
+	    tickBudget--;
+	    deferredTicks++;
+	}
+	else {
+	    settleTicks();
 	    privilege.interrupt.tick(false);
+	    resetTickBudget();
 	}
     }
 
+    /**
+     * Account for every tick counted by <tt>userTick()</tt>. Must be called
+     * before anything outside the processor can look at the time.
+     */
+    private void settleTicks() {
+	privilege.interrupt.settleUserTicks(deferredTicks);
+	deferredTicks = 0;
+    }
+
+    /**
+     * Work out how many user ticks can pass before the next pending
+     * interrupt is due. Must be called whenever a thread returns from
+     * kernel code, since interrupts may have been scheduled, and time may
+     * have passed while other threads ran.
+     */
+    private void resetTickBudget() {
+	if (!batchTicks)
+	    return;
+
+	long ticks = privilege.interrupt.nextPendingTime() -
+	    privilege.stats.totalTicks - 1;
+	
+	tickBudget = (ticks > 0) ? ticks / Stats.UserTick : 0;
+    }
+
     /**
      * Read and return the contents of the specified CPU register.
      *
@@ -175,6 +249,7 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+	flushMicroTLB();
     }
 
     /**
@@ -188,6 +263,64 @@ public final class Processor {
 	return tlbSize;
     }
 
+    /**
+     * Return the number of entries in each set of this processor's TLB. The
+     * TLB is fully associative if this is the same as <tt>getTLBSize()</tt>,
+     * which is the default.
+     *
+     * @return	the associativity of this processor's TLB.
+     */
+    public int getTLBAssociativity() {
+	Lib.assertTrue(usingTLB);
+
+	return tlbAssociativity;
+    }
+
+    /**
+     * Return the index of a TLB entry that can hold a translation for the
+     * specified virtual page. Each virtual page belongs to one set, and its
+     * translation may only be written to an entry in that set.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	way	which entry within the set, between 0 and
+     *			<tt>getTLBAssociativity()-1</tt>.
+     * @return	the index into the TLB.
+     */
+    public int getTLBSlot(int vpn, int way) {
+	Lib.assertTrue(usingTLB);
+	Lib.assertTrue(vpn >= 0 && way >= 0 && way < tlbAssociativity);
+
+	return (vpn % (tlbSize/tlbAssociativity))*tlbAssociativity + way;
+    }
+
+    /**
+     * Set the current address space identifier. Only TLB entries tagged with
+     * this identifier are used to translate addresses, so a kernel that
+     * gives each process its own identifier does not need to invalidate the
+     * TLB on a context switch. A kernel that never calls this method uses
+     * identifier 0 for everything, and sees an untagged TLB.
+     *
+     * @param	asid	the new address space identifier.
+     */
+    public void setASID(int asid) {
+	Lib.assertTrue(usingTLB);
+
+	this.asid = asid;
+	flushMicroTLB();
+    }
+
+    /**
+     * Return the current address space identifier, set by the last call to
+     * <tt>setASID()</tt>.
+     *
+     * @return	the current address space identifier.
+     */
+    public int getASID() {
+	Lib.assertTrue(usingTLB);
+
+	return asid;
+    }
+
     /**
      * Returns the specified TLB entry.
      *
@@ -202,20 +335,104 @@ public final class Processor {
     }
 
     /**
-     * Fill the specified TLB entry.
+     * Returns the address space identifier that tags the specified TLB entry.
+     *
+     * @param	number	the index into the TLB.
+     * @return	the tag of the specified TLB entry.
+     */
+    public int readTLBTag(int number) {
+	Lib.assertTrue(usingTLB);
+	Lib.assertTrue(number >= 0 && number < tlbSize);
+
+	return tlbTags[number];
+    }
+
+    /**
+     * Fill the specified TLB entry, tagged with the current address space
+     * identifier. Same as
+     * <tt>writeTLBEntry(number, entry, getASID())</tt>.
      *
      * <p>
-     * The TLB is fully associative, so the location of an entry within the TLB
-     * does not affect anything.
+     * If the TLB is fully associative, the location of an entry within the
+     * TLB does not affect anything.
      *
      * @param	number	the index into the TLB.
      * @param	entry	the new contents of the TLB entry.
      */
     public void writeTLBEntry(int number, TranslationEntry entry) {
+	writeTLBEntry(number, entry, asid);
+    }
+
+    /**
+     * Fill the specified TLB entry, tagged with the specified address space
+     * identifier. A valid entry must be in the set for its virtual page (see
+     * <tt>getTLBSlot()</tt>).
+     *
+     * @param	number	the index into the TLB.
+     * @param	entry	the new contents of the TLB entry.
+     * @param	tag	the address space identifier of the entry.
+     */
+    public void writeTLBEntry(int number, TranslationEntry entry, int tag) {
 	Lib.assertTrue(usingTLB);
 	Lib.assertTrue(number >= 0 && number < tlbSize);
+	Lib.assertTrue(!entry.valid || entry.vpn >= 0 &&
+		       number / tlbAssociativity ==
+		       getTLBSlot(entry.vpn, 0) / tlbAssociativity,
+		       "TLB entry is not in the set for its virtual page");
+
+	if (translations[number].valid)
+	    unlinkTLBEntry(number);
 
 	translations[number] = new TranslationEntry(entry);
+	tlbTags[number] = tag;
+
+	if (translations[number].valid)
+	    linkTLBEntry(number);
+
+	flushMicroTLB();
+    }
+
+    private int tlbHash(int vpn, int tag) {
+	return (vpn ^ (tag * 0x9E3779B1)) & (tlbBuckets.length-1);
+    }
+
+    /**
+     * Add a valid TLB entry to its hash chain. Chains are kept in index
+     * order, so if the kernel installs two entries for the same page, the
+     * lower-numbered one is used, as with a linear search.
+     */
+    private void linkTLBEntry(int number) {
+	int bucket = tlbHash(translations[number].vpn, tlbTags[number]);
+
+	int prev = -1, next = tlbBuckets[bucket];
+	while (next != -1 && next < number) {
+	    prev = next;
+	    next = tlbChain[next];
+	}
+
+	tlbChain[number] = next;
+	if (prev == -1)
+	    tlbBuckets[bucket] = number;
+	else
+	    tlbChain[prev] = number;
+    }
+
+    private void unlinkTLBEntry(int number) {
+	int bucket = tlbHash(translations[number].vpn, tlbTags[number]);
+
+	if (tlbBuckets[bucket] == number) {
+	    tlbBuckets[bucket] = tlbChain[number];
+	    return;
+	}
+
+	for (int i=tlbBuckets[bucket]; i != -1; i=tlbChain[i]) {
+	    if (tlbChain[i] == number) {
+		tlbChain[i] = tlbChain[number];
+		return;
+	    }
+	}
+
+	Lib.assertNotReached();
     }
 
     /**
@@ -228,14 +445,62 @@ public final class Processor {
 	return numPhysPages;
     }
 
+    /**
+     * Test whether physical memory is on the heap, so that
+     * <tt>getMemory()</tt> can be used.
+     *
+     * @return	<tt>true</tt> if physical memory is a Java array.
+     */
+    public boolean hasMemoryArray() {
+	return memory.array() != null;
+    }
+
     /**
      * Return a reference to the physical memory array. The size of this array
-     * is <tt>pageSize * getNumPhysPages()</tt>.
+     * is <tt>pageSize * getNumPhysPages()</tt>. Only available if physical
+     * memory is on the heap (see <tt>Processor.memory</tt>); kernels that
+     * should work with any memory can use <tt>readMemory()</tt> and
+     * <tt>writeMemory()</tt> instead.
      *
      * @return	the main memory array.
      */
     public byte[] getMemory() {
-	return mainMemory;
+	Lib.assertTrue(memory.array() != null,
+		       "physical memory is not on the heap");
+	
+	return memory.array();
+    }
+
+    /**
+     * Copy bytes from physical memory into an array.
+     *
+     * @param	paddr	the first physical address to copy from.
+     * @param	data	the array to copy into.
+     * @param	offset	the first byte to write in the array.
+     * @param	length	the number of bytes to copy.
+     */
+    public void readMemory(int paddr, byte[] data, int offset, int length) {
+	Lib.assertTrue(paddr >= 0 && length >= 0 &&
+		       paddr+length <= memory.getSize());
+	Lib.assertTrue(offset >= 0 && offset+length <= data.length);
+
+	memory.read(paddr, data, offset, length);
+    }
+
+    /**
+     * Copy bytes from an array into physical memory.
+     *
+     * @param	paddr	the first physical address to copy to.
+     * @param	data	the array to copy from.
+     * @param	offset	the first byte to read from the array.
+     * @param	length	the number of bytes to copy.
+     */
+    public void writeMemory(int paddr, byte[] data, int offset, int length) {
+	Lib.assertTrue(paddr >= 0 && length >= 0 &&
+		       paddr+length <= memory.getSize());
+	Lib.assertTrue(offset >= 0 && offset+length <= data.length);
+
+	memory.write(paddr, data, offset, length);
     }
 
     /**
@@ -279,6 +544,16 @@ public final class Processor {
 	delayedLoad(0, 0, 0);
     }
 
+    /**
+     * Forget every micro-TLB entry. Called whenever the page table or TLB is
+     * replaced.
+     */
+    private void flushMicroTLB() {
+	microFetch.vpn = -1;
+	microRead.vpn = -1;
+	microWrite.vpn = -1;
+    }
+
     /**
      * Translate a virtual address into a physical address, using either a
      * page table or a TLB. Check for alignment, make sure the virtual page is
@@ -289,11 +564,47 @@ public final class Processor {
      * @param	vaddr	the virtual address to translate.
      * @param	size	the size of the memory reference (must be 1, 2, or 4).
      * @param	writing	<tt>true</tt> if the memory reference is a write.
-     * @return		the physical address.
-     * @exception	MipsException	if a translation error occurred.
+     * @return		the physical address, or -1 if a translation error
+     *			occurred, in which case the exception has been
+     *			recorded with <tt>trap()</tt>.
+     */
+    private int translate(int vaddr, int size, boolean writing) {
+	return translate(vaddr, size, writing,
+			 writing ? microWrite : microRead);
+    }
+
+    /**
+     * Translate a virtual address into a physical address, first trying the
+     * specified micro-TLB entry. A hit still checks alignment, and still
+     * checks that the cached translation entry is installed at the same
+     * place, valid, writable if necessary, and mapped to the same physical
+     * page, so a kernel that modifies its page table directly is seen at
+     * once.
+     *
+     * @param	vaddr	the virtual address to translate.
+     * @param	size	the size of the memory reference (must be 1, 2, or 4).
+     * @param	writing	<tt>true</tt> if the memory reference is a write.
+     * @param	micro	the micro-TLB entry for this kind of reference.
+     * @return		the physical address, or -1 if a translation error
+     *			occurred.
      */
-    private int translate(int vaddr, int size, boolean writing)
-	throws MipsException {
+    private int translate(int vaddr, int size, boolean writing,
+			  MicroTLBEntry micro) {
+	if (useMicroTLB && (vaddr & (size-1)) == 0 &&
+	    micro.vpn == pageFromAddress(vaddr) &&
+	    micro.translations == translations) {
+	    TranslationEntry entry = micro.entry;
+
+	    if (translations[micro.index] == entry && entry.valid &&
+		entry.ppn == micro.ppn && !(writing && entry.readOnly)) {
+		entry.used = true;
+		if (writing)
+		    entry.dirty = true;
+
+		return micro.ppn*pageSize + offsetFromAddress(vaddr);
+	    }
+	}
+
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 			       + (writing ? ", write" : ", read..."));
@@ -301,7 +612,8 @@ public final class Processor {
 	// check alignment
 	if ((vaddr & (size-1)) != 0) {
 	    Lib.debug(dbgProcessor, "\t\talignment error");
-	    throw new MipsException(exceptionAddressError, vaddr);
+	    trap(exceptionAddressError, vaddr);
+	    return -1;
 	}
 
 	// calculate virtual page number and offset from the virtual address
@@ -309,6 +621,7 @@ public final class Processor {
 	int offset = offsetFromAddress(vaddr);
 
 	TranslationEntry entry = null;
+	int index = vpn;
 
 	// if not using a TLB, then the vpn is an index into the table
 	if (!usingTLB) {
@@ -317,37 +630,42 @@ public final class Processor {
 		!translations[vpn].valid) {
 		privilege.stats.numPageFaults++;
 		Lib.debug(dbgProcessor, "\t\tpage fault");
-		throw new MipsException(exceptionPageFault, vaddr);
+		trap(exceptionPageFault, vaddr);
+		return -1;
 	    }
 
 	    entry = translations[vpn];
 	}
-	// else, look through all TLB entries for matching vpn
+	// else, look up the vpn and address space in the TLB hash chains
 	else {
-	    for (int i=0; i<tlbSize; i++) {
-		if (translations[i].valid && translations[i].vpn == vpn) {
+	    for (int i=tlbBuckets[tlbHash(vpn, asid)]; i != -1; i=tlbChain[i]) {
+		if (translations[i].vpn == vpn && tlbTags[i] == asid) {
 		    entry = translations[i];
+		    index = i;
 		    break;
 		}
 	    }
 	    if (entry == null) {
 		privilege.stats.numTLBMisses++;
 		Lib.debug(dbgProcessor, "\t\tTLB miss");
-		throw new MipsException(exceptionTLBMiss, vaddr);
+		trap(exceptionTLBMiss, vaddr);
+		return -1;
 	    }
 	}
 
 	// check if trying to write a read-only page
 	if (entry.readOnly && writing) {
 	    Lib.debug(dbgProcessor, "\t\tread-only exception");
-	    throw new MipsException(exceptionReadOnly, vaddr);
+	    trap(exceptionReadOnly, vaddr);
+	    return -1;
 	}
 
 	// check if physical page number is out of range
 	int ppn = entry.ppn;
 	if (ppn < 0 || ppn >= numPhysPages) {
 	    Lib.debug(dbgProcessor, "\t\tbad ppn");
-	    throw new MipsException(exceptionBusError, vaddr);
+	    trap(exceptionBusError, vaddr);
+	    return -1;
 	}
 
 	// set used and dirty bits as appropriate
@@ -357,6 +675,12 @@ public final class Processor {
 
 	int paddr = (ppn*pageSize) + offset;
 
+	micro.vpn = vpn;
+	micro.translations = translations;
+	micro.index = index;
+	micro.entry = entry;
+	micro.ppn = ppn;
+
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
 	return paddr;
@@ -368,18 +692,22 @@ public final class Processor {
      *
      * @param	vaddr	the virtual address to read from.
      * @param	size	the number of bytes to read (1, 2, or 4).
-     * @return		the value read.
-     * @exception	MipsException	if a translation error occurred.
+     * @return		the value read, or 0 if a translation error occurred,
+     *			in which case the exception has been recorded with
+     *			<tt>trap()</tt>.
      */
-    private int readMem(int vaddr, int size) throws MipsException {
+    private int readMem(int vaddr, int size) {
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size);
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
+	int paddr = translate(vaddr, size, false);
+	if (paddr == -1)
+	    return 0;
+
+	int value = memory.read(paddr, size);
 
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\t\tvalue read=0x" +
@@ -395,10 +723,11 @@ public final class Processor {
      * @param	vaddr	the virtual address to write to.
      * @param	size	the number of bytes to write (1, 2, or 4).
      * @param	value	the value to store.
-     * @exception	MipsException	if a translation error occurred.
+     * @return		<tt>false</tt> if a translation error occurred, in
+     *			which case the exception has been recorded with
+     *			<tt>trap()</tt>.
      */
-    private void writeMem(int vaddr, int size, int value)
-	throws MipsException {
+    private boolean writeMem(int vaddr, int size, int value) {
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size + ", value=0x"
@@ -406,8 +735,45 @@ public final class Processor {
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	int paddr = translate(vaddr, size, true);
+	if (paddr == -1)
+	    return false;
+
+	memory.write(paddr, size, value);
+	return true;
+    }
+
+    /**
+     * Return the predecoded form of the instruction word <i>value</i>, which
+     * was fetched from physical address <i>paddr</i>. Each cache entry is
+     * tagged with the word it was decoded from, so an entry is decoded again
+     * whenever the word has changed, whether it was overwritten by a user
+     * store or by the kernel through <tt>getMemory()</tt> or
+     * <tt>writeMemory()</tt>.
+     *
+     * @param	paddr	the physical address the instruction was fetched from.
+     * @param	value	the instruction word at that address.
+     * @return		the decoded instruction.
+     */
+    private Decoded getDecoded(int paddr, int value) {
+	Decoded[] page = decodeCache[paddr / pageSize];
+	if (page == null) {
+	    page = new Decoded[pageSize / 4];
+	    decodeCache[paddr / pageSize] = page;
+	}
+
+	int index = (paddr % pageSize) / 4;
+	Decoded decoded = page[index];
+
+	if (decoded == null) {
+	    decoded = new Decoded(value);
+	    page[index] = decoded;
+	}
+	else if (decoded.value != value) {
+	    decoded.decode(value);
+	}
+
+	return decoded;
     }
 
     /**
@@ -541,6 +907,19 @@ public final class Processor {
     private boolean usingTLB;
     /** Number of TLB entries. */
     private int tlbSize = 4;
+    /** Number of TLB entries in each set. */
+    private int tlbAssociativity;
+    /** The address space identifier that tags each TLB entry. */
+    private int[] tlbTags;
+    /** The current address space identifier. */
+    private int asid = 0;
+    /**
+     * The first valid TLB entry in each hash chain, or -1. Entries are hashed
+     * by vpn and tag.
+     */
+    private int[] tlbBuckets;
+    /** The next TLB entry in the same hash chain, or -1. */
+    private int[] tlbChain;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
@@ -554,7 +933,39 @@ public final class Processor {
     /** Number of physical pages in memory. */
     private int numPhysPages;
     /** Main memory for user programs. */
-    private byte[] mainMemory;
+    private PhysicalMemory memory;
+    /**
+     * Predecoded instructions, indexed by physical page and then by word
+     * within the page. Pages are allocated the first time an instruction is
+     * fetched from them.
+     */
+    private Decoded[][] decodeCache;
+
+    /** <tt>true</tt> if the micro-TLB should be used. */
+    private boolean useMicroTLB;
+    /**
+     * The most recent translations for instruction fetches, loads and
+     * stores. Keeping them apart stops a loop that walks an array from
+     * evicting the page it is running on.
+     */
+    private MicroTLBEntry microFetch = new MicroTLBEntry(),
+	microRead = new MicroTLBEntry(), microWrite = new MicroTLBEntry();
+
+    /** <tt>true</tt> if user ticks should be batched up to the next interrupt. */
+    private boolean batchTicks;
+    /** The number of user ticks that can still be counted before settling. */
+    private long tickBudget = 0;
+    /** The number of user ticks counted but not yet given to Interrupt. */
+    private long deferredTicks = 0;
+
+    /** <tt>true</tt> if the current instruction caused an exception. */
+    private boolean trapped = false;
+    /** The cause of the exception recorded by <tt>trap()</tt>. */
+    private int trapCause;
+    /** <tt>true</tt> if the recorded exception has a bad virtual address. */
+    private boolean trapHasBadVAddr;
+    /** The bad virtual address of the recorded exception. */
+    private int trapBadVAddr;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
@@ -562,6 +973,7 @@ public final class Processor {
     private static final char dbgProcessor = 'p';
     private static final char dbgDisassemble = 'm';
     private static final char dbgFullDisassemble = 'M';
+    private static final char dbgInterrupt = 'i';
 
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
@@ -569,135 +981,151 @@ public final class Processor {
 	}
     }
 
-    private class MipsException extends Exception {
-	public MipsException(int cause) {
-	    Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
+    /**
+     * One cached translation. <tt>index</tt> is where <tt>entry</tt> was
+     * found in <tt>translations</tt>: the vpn for a page table, or the slot
+     * for a TLB.
+     */
+    private static class MicroTLBEntry {
+	int vpn = -1;
+	TranslationEntry[] translations;
+	int index;
+	TranslationEntry entry;
+	int ppn;
+    }
 
-	    this.cause = cause;
-	}
+    /**
+     * Record a user exception caused by the current instruction. The
+     * instruction is abandoned without changing any more state, and the
+     * exception is handled by <tt>run()</tt> before the next tick.
+     *
+     * @param	cause	the cause of the exception.
+     */
+    private void trap(int cause) {
+	Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
 
-	public MipsException(int cause, int badVAddr) {
-	    this(cause);
+	trapped = true;
+	trapCause = cause;
+	trapHasBadVAddr = false;
+    }
 
-	    hasBadVAddr = true;
-	    this.badVAddr = badVAddr;
-	}
+    /**
+     * Record a user exception caused by an access to <i>badVAddr</i>.
+     *
+     * @param	cause		the cause of the exception.
+     * @param	badVAddr	the virtual address that caused it.
+     */
+    private void trap(int cause, int badVAddr) {
+	trap(cause);
 
-	public void handle() {
-	    writeRegister(regCause, cause);
+	trapHasBadVAddr = true;
+	trapBadVAddr = badVAddr;
+    }
 
-	    if (hasBadVAddr)
-		writeRegister(regBadVAddr, badVAddr);
+    /**
+     * Hand the recorded exception to the kernel exception handler, unless
+     * the autograder intercepts it.
+     */
+    private void handleTrap() {
+	// the handler may switch to another thread that also traps
+	trapped = false;
+	    
+	writeRegister(regCause, trapCause);
 
-	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
-		System.out.println("exception: " + exceptionNames[cause]);
+	if (trapHasBadVAddr)
+	    writeRegister(regBadVAddr, trapBadVAddr);
 
-	    finishLoad();
+	if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+	    System.out.println("exception: " + exceptionNames[trapCause]);
 
-	    Lib.assertTrue(exceptionHandler != null);
+	finishLoad();
 
-	    // autograder might not want kernel to know about this exception
-	    if (!Machine.autoGrader().exceptionHandler(privilege))
-		return;
-	    
-	    exceptionHandler.run();
-	}
+	Lib.assertTrue(exceptionHandler != null);
 
-	private boolean hasBadVAddr = false;
-	private int cause, badVAddr;
-    }	
+	// autograder might not want kernel to know about this exception
+	if (!Machine.autoGrader().exceptionHandler(privilege))
+	    return;
+	    
+	exceptionHandler.run();
+    }
 
     private class Instruction {
-	public void run() throws MipsException {
+	public void run() {
 	    // hopefully this looks familiar to 152 students?
 	    fetch();
+	    if (trapped)
+		return;
+
 	    decode();
 	    execute();
-	    writeBack();
+	    if (!trapped)
+		writeBack();
 	}	
 
 	private boolean test(int flag) {
 	    return Lib.test(flag, flags);
 	}
 
-	private void fetch() throws MipsException {
+	private void fetch() {
 	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
 		Lib.test(dbgFullDisassemble))
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    // trace the fetch as the memory read it used to be
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\treadMem vaddr=0x"
+				   + Lib.toHexString(registers[regPC])
+				   + ", size=4");
+
+	    int paddr = translate(registers[regPC], 4, false, microFetch);
+	    if (paddr == -1)
+		return;
+
+	    value = memory.read(paddr, 4);
+	    decoded = getDecoded(paddr, value);
+
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\t\tvalue read=0x" +
+				   Lib.toHexString(value, 8));
 	}
 	
 	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
+	    Decoded decoded = this.decoded;
 
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    target = decoded.target;
+	    imm = decoded.imm;
 
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	    operation = decoded.operation;
+	    name = decoded.name;
+	    format = decoded.format;
+	    flags = decoded.flags;
+
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
 
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
 	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
-
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
 	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
+		jtarget = registers[regNextPC] + decoded.branchOffset;
 	    else if (format == Mips.JFMT)
 		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -845,7 +1273,7 @@ public final class Processor {
 		System.out.print("\n");
 	}
 
-	private void execute() throws MipsException {
+	private void execute() {
 	    int value;
 	    int preserved;
 	    
@@ -869,7 +1297,7 @@ public final class Processor {
 			throw new ArithmeticException();
 		}
 		catch (ArithmeticException e) {
-		    throw new MipsException(exceptionOverflow);
+		    trap(exceptionOverflow);
 		}
 		break;
 
@@ -939,10 +1367,13 @@ public final class Processor {
 		break;
 
 	    case Mips.SYSCALL:
-		throw new MipsException(exceptionSyscall);
+		trap(exceptionSyscall);
+		break;
 
 	    case Mips.LOAD:
 		value = readMem(addr, size);
+		if (trapped)
+		    break;
 		
 		if (!test(Mips.UNSIGNED))
 		    dst = Lib.extend(value, 0, size*8);
@@ -953,6 +1384,8 @@ public final class Processor {
 
 	    case Mips.LWL:
 		value = readMem(addr&~0x3, 4);
+		if (trapped)
+		    break;
 
 		// LWL shifts the input left so the addressed byte is highest
 		preserved = (3-(addr&0x3))*8;	// number of bits to preserve
@@ -964,6 +1397,8 @@ public final class Processor {
 
 	    case Mips.LWR:
 		value = readMem(addr&~0x3, 4);
+		if (trapped)
+		    break;
 
 		// LWR shifts the input right so the addressed byte is lowest
 		preserved = (addr&0x3)*8;	// number of bits to preserve
@@ -979,6 +1414,8 @@ public final class Processor {
 
 	    case Mips.SWL:
 		value = readMem(addr&~0x3, 4);
+		if (trapped)
+		    break;
 
 		// SWL shifts highest order byte into the addressed position
 		preserved = (3-(addr&0x3))*8;
@@ -993,6 +1430,8 @@ public final class Processor {
 
 	    case Mips.SWR:
 		value = readMem(addr&~0x3, 4);
+		if (trapped)
+		    break;
 
 		// SWR shifts the lowest order byte into the addressed position
 		preserved = (addr&0x3)*8;
@@ -1009,17 +1448,20 @@ public final class Processor {
 		System.err.println("Warning: encountered unimplemented inst");
 		
 	    case Mips.INVALID:
-		throw new MipsException(exceptionIllegalInstruction);
+		trap(exceptionIllegalInstruction);
+		break;
 
 	    default:
 		Lib.assertNotReached();
 	    }
 	}
 
-	private void writeBack() throws MipsException {
-	    // if instruction is signed, but carry bit !+ sign bit, throw
-	    if (test(Mips.OVERFLOW) && Lib.test(dst,31) != Lib.test(dst,32))
-		throw new MipsException(exceptionOverflow);
+	private void writeBack() {
+	    // if instruction is signed, but carry bit !+ sign bit, trap
+	    if (test(Mips.OVERFLOW) && Lib.test(dst,31) != Lib.test(dst,32)) {
+		trap(exceptionOverflow);
+		return;
+	    }
 
 	    if (test(Mips.DELAYEDLOAD))
 		delayedLoad(dstReg, (int) dst, mask);
@@ -1052,6 +1494,7 @@ public final class Processor {
 	}
     
 	// state used to execute a single instruction
+	Decoded decoded;
 	int value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
@@ -1063,6 +1506,83 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * The part of a decoded instruction that depends only on the instruction
+     * word, and not on the contents of any register.
+     */
+    private static class Decoded {
+	Decoded(int value) {
+	    decode(value);
+	}
+
+	void decode(int value) {
+	    this.value = value;
+
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+	    imm = Lib.extend(value, 0, 16);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // branch offsets use the sign-extended immediate
+	    branchOffset = imm<<2;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags)) {
+		imm &= 0xFFFF;
+	    }
+	}
+
+	/** The instruction word this entry was decoded from. */
+	int value;
+	int op, rs, rt, rd, sh, func, target, imm;
+	int operation, format, flags;
+	String name;
+
+	int size, dstReg, branchOffset;
+    }
+
     private static class Mips {
 	Mips() {
 	}
@@ -21,6 +21,9 @@ public class StandardConsole implements SerialConsole {
 
 	this.privilege = privilege;
 
+	receiveType = privilege.interrupt.registerType("console read");
+	sendType = privilege.interrupt.registerType("console write");
+
 	receiveInterrupt = new Runnable() {
 		public void run() { receiveInterrupt(); }
 	    };
@@ -39,7 +42,7 @@ public class StandardConsole implements SerialConsole {
     }
 
     private void scheduleReceiveInterrupt() {
-	privilege.interrupt.schedule(Stats.ConsoleTime, "console read",
+	privilege.interrupt.schedule(Stats.ConsoleTime, receiveType,
 				     receiveInterrupt);
     }
 
@@ -113,7 +116,7 @@ public class StandardConsole implements SerialConsole {
     }
 
     private void scheduleSendInterrupt() {
-	privilege.interrupt.schedule(Stats.ConsoleTime, "console write",
+	privilege.interrupt.schedule(Stats.ConsoleTime, sendType,
 				     sendInterrupt);
     }
 
@@ -150,6 +153,7 @@ public class StandardConsole implements SerialConsole {
 
     private Runnable receiveInterrupt;
     private Runnable sendInterrupt;
+    private int receiveType, sendType;
 
     private Runnable receiveInterruptHandler = null;
     private Runnable sendInterruptHandler = null;
@@ -29,6 +29,11 @@ public final class Stats {
 			   + ", TLB misses " + numTLBMisses);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+
+	// only runs with real-time threads can miss deadlines
+	if (numDeadlineMisses != 0)
+	    System.out.println("Real-time: deadline misses "
+			       + numDeadlineMisses);
     }
 
     /**
@@ -61,6 +66,8 @@ public final class Stats {
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
+    /** The total number of deadlines real-time threads have missed. */
+    public int numDeadlineMisses = 0;
 
     /**
      * The amount to advance simulated time after each user instructions is
@@ -5,7 +5,12 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
-import java.util.Vector;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +19,24 @@ import java.security.PrivilegedAction;
  * object.
  *
  * <p>
+ * <tt>TCB.threads</tt> in <tt>nachos.conf</tt> selects the kind of JVM
+ * thread. With <tt>platform</tt>, the default, each TCB has an ordinary JVM
+ * thread, and control is handed from one to the next with
+ * <tt>wait()</tt> and <tt>notify()</tt>. With <tt>virtual</tt>, each TCB has
+ * a virtual thread, if the JVM supports them, and control is handed over with
+ * <tt>LockSupport.park()</tt> and <tt>unpark()</tt>, which is cheaper and lets
+ * a kernel have tens of thousands of threads. <tt>TCB.maxThreads</tt> and
+ * <tt>TCB.stackSize</tt> set the number of threads allowed and the stack size
+ * of platform threads. <tt>proj1/virtual.conf</tt> runs the threads self
+ * tests on virtual threads, and <tt>nachos.threads.ContextSwitchBenchmark</tt>
+ * compares the cost of a switch with either kind.
+ *
+ * <p>
+ * When a TCB is destroyed, its JVM thread is kept, up to
+ * <tt>TCB.poolSize</tt> of them, and used again for the next TCB to start,
+ * so that forking a short-lived thread does not have to create a JVM thread.
+ *
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -40,6 +63,99 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	String threads = Config.getString("TCB.threads", "platform");
+	Lib.assertTrue(threads.equals("platform") || threads.equals("virtual"),
+		       "TCB.threads must be platform or virtual");
+
+	parking = threads.equals("virtual");
+	if (parking)
+	    virtualThreadBuilder = findVirtualThreadBuilder();
+
+	maxThreads = Config.getInteger("TCB.maxThreads",
+				       parking ? 100000 : 250);
+	stackSize = Config.getInteger("TCB.stackSize", 0);
+	poolSize = Config.getInteger("TCB.poolSize", 16);
+	Lib.assertTrue(maxThreads > 0 && stackSize >= 0 && poolSize >= 0);
+    }
+
+    /**
+     * Return the number of started, non-destroyed TCBs that can be in
+     * existence, set by <tt>TCB.maxThreads</tt>.
+     *
+     * @return	the maximum number of threads.
+     */
+    public static int getMaxThreads() {
+	return maxThreads;
+    }
+
+    /**
+     * Return the number of JVM threads kept for reuse when their TCBs are
+     * destroyed, set by <tt>TCB.poolSize</tt>.
+     *
+     * @return	the size of the thread pool.
+     */
+    public static int getPoolSize() {
+	return poolSize;
+    }
+
+    /**
+     * Look up <tt>Thread.ofVirtual()</tt>, which only exists on JVMs that
+     * support virtual threads, and return the builder it returns, or
+     * <tt>null</tt> if there is none. Platform threads are used instead if
+     * there is none, still handing off with <tt>park()</tt> and
+     * <tt>unpark()</tt>.
+     */
+    private static Object findVirtualThreadBuilder() {
+	try {
+	    System.setProperty("jdk.virtualThreadScheduler.parallelism", "1");
+	    System.setProperty("jdk.virtualThreadScheduler.maxPoolSize", "1");
+
+	    Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+	    unstarted = Class.forName("java.lang.Thread$Builder")
+		.getMethod("unstarted", Runnable.class);
+
+	    ((Thread) unstarted.invoke(builder, new Runnable() {
+		    public void run() { keepCarrier(); }
+		})).start();
+	    return builder;
+	}
+	catch (Exception e) {
+	    System.out.print(" (no virtual threads)");
+	    return null;
+	}
+    }
+
+    /**
+     * Keep the carrier thread that runs virtual threads from being retired.
+     * The JVM starts its carriers lazily, from whichever thread first needs
+     * one, and retires them after 30 seconds without work. Once the security
+     * manager is enabled, a Nachos thread cannot start one. So there is only
+     * one carrier, since only one TCB runs at a time anyway, it is started
+     * in <tt>givePrivilege()</tt> to run this method, and this method wakes
+     * up often enough that the carrier is never idle for that long.
+     */
+    private static void keepCarrier() {
+	while (true) {
+	    try {
+		Thread.sleep(10000);
+	    }
+	    catch (InterruptedException e) {
+	    }
+	}
+    }
+
+    private Thread newThread(Runnable target) {
+	if (virtualThreadBuilder != null) {
+	    try {
+		return (Thread) unstarted.invoke(virtualThreadBuilder, target);
+	    }
+	    catch (Exception e) {
+		Lib.assertNotReached("unable to create virtual thread: " + e);
+	    }
+	}
+
+	return new Thread(null, target, "TCB", stackSize);
     }
     
     /**
@@ -66,7 +182,9 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() < maxThreads,
+		       "too many threads (TCB.maxThreads is " + maxThreads
+		       + ")");
 
 	isFirstTCB = (currentTCB == null);
 
@@ -86,26 +204,38 @@ public final class TCB {
 	this.target = target;
 
 	if (!isFirstTCB) {
-	    /* If this is not the first TCB, we have to make a new Java thread
-	     * to run it. Creating Java threads is a privileged operation.
+	    /* If this is not the first TCB, we need a Java thread to run it,
+	     * either one left idle by a destroyed TCB or a new one. Creating
+	     * Java threads is a privileged operation.
 	     */
-	    tcbTarget = new Runnable() {
-		    public void run() { threadroot(); }
-		};
-
-	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
-		});
+	    final Worker worker = pollIdleWorker();
+
+	    if (worker == null) {
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+			    Worker worker = new Worker(TCB.this);
+			    worker.thread = newThread(worker);
+			    javaThread = worker.thread;
+			}
+		    });
+	    }
+	    else {
+		javaThread = worker.thread;
+	    }
 
-	    /* The Java thread hasn't yet started, but we need to get it
-	     * blocking in yield(). We do this by temporarily turning off the
-	     * current TCB, starting the new Java thread, and waiting for it
+	    /* The Java thread isn't running this TCB yet, but we need to get
+	     * it blocking in yield(). We do this by temporarily turning off
+	     * the current TCB, starting the Java thread, and waiting for it
 	     * to wake us up from threadroot(). Once the new TCB wakes us up,
 	     * it's safe to context switch to the new TCB.
 	     */
 	    currentTCB.running = false;
-	    
-	    this.javaThread.start();
+
+	    if (worker == null)
+		this.javaThread.start();
+	    else
+		worker.assign(this);
+
 	    currentTCB.waitForInterrupt();
 	}
 	else {
@@ -244,7 +374,7 @@ public final class TCB {
 		privilege.exit(1);
 	    }
 
-	    runningThreads.removeElement(this);
+	    runningThreads.remove(this);
 	    if (runningThreads.isEmpty())
 		privilege.exit(0);
 	}
@@ -252,7 +382,7 @@ public final class TCB {
 	    System.out.print("\n");
 	    e.printStackTrace();
 
-	    runningThreads.removeElement(this);
+	    runningThreads.remove(this);
 	    if (runningThreads.isEmpty())
 		privilege.exit(1);
 	    else
@@ -280,29 +410,103 @@ public final class TCB {
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
-     * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
+     * Waits on the monitor bound to this TCB, or parks if handing off with
+     * <tt>park()</tt>, until its <tt>running</tt> flag is set to
+     * <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
      * TCB needs to go to wait for its turn to run. This includes the ping-pong
      * process of starting and destroying TCBs, as well as in context switching
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
+    private void waitForInterrupt() {
+	if (parking) {
+	    while (!running)
+		LockSupport.park(this);
+	    return;
+	}
+
+	synchronized (this) {
+	    while (!running) {
+		try { wait(); }
+		catch (InterruptedException e) { }
+	    }
 	}
     }
 
     /**
      * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
-     * starting and destroying TCBs, as well as in context switching to this
-     * TCB.
+     * and signalling the monitor bound to it, or unparking its thread. Used
+     * in the ping-pong process of starting and destroying TCBs, as well as in
+     * context switching to this TCB.
      */
-    private synchronized void interrupt() {
-	running = true;
-	notify();
+    private void interrupt() {
+	if (parking) {
+	    running = true;
+	    LockSupport.unpark(javaThread);
+	    return;
+	}
+
+	synchronized (this) {
+	    running = true;
+	    notify();
+	}
+    }
+
+    /**
+     * The body of a Java thread that runs TCBs. It runs one TCB until the TCB
+     * is destroyed, and then waits in <tt>idleWorkers</tt> to be given
+     * another, unless enough threads are already waiting.
+     */
+    private static class Worker implements Runnable {
+	Worker(TCB first) {
+	    next = first;
+	}
+
+	public void run() {
+	    TCB tcb = next;
+
+	    while (true) {
+		tcb.threadroot();
+
+		// nothing of the last TCB may carry over to the next
+		next = null;
+		Thread.interrupted();
+		if (!offerIdleWorker(this))
+		    return;
+
+		while (next == null)
+		    LockSupport.park(this);
+
+		tcb = next;
+	    }
+	}
+
+	/**
+	 * Give this idle worker a TCB to run, and wake it up.
+	 */
+	void assign(TCB tcb) {
+	    next = tcb;
+	    LockSupport.unpark(thread);
+	}
+
+	Thread thread;
+	private volatile TCB next;
+    }
+
+    private static Worker pollIdleWorker() {
+	synchronized (idleWorkers) {
+	    return idleWorkers.poll();
+	}
+    }
+
+    private static boolean offerIdleWorker(Worker worker) {
+	synchronized (idleWorkers) {
+	    if (idleWorkers.size() >= poolSize)
+		return false;
+
+	    idleWorkers.push(worker);
+	    return true;
+	}
     }
 
     private void associateThread(KThread thread) {
@@ -330,7 +534,23 @@ public final class TCB {
      * The maximum number of started, non-destroyed TCB's that can be in
      * existence.
      */
-    public static final int maxThreads = 250;
+    private static int maxThreads;
+    /** The stack size of new platform threads, or 0 for the JVM default. */
+    private static long stackSize;
+    /** The most Java threads that are kept for reuse. */
+    private static int poolSize;
+    /** Java threads whose TCBs were destroyed, waiting for another TCB. */
+    private static final ArrayDeque<Worker> idleWorkers =
+	new ArrayDeque<Worker>();
+
+    /**
+     * <tt>true</tt> if TCBs hand off with <tt>park()</tt> and
+     * <tt>unpark()</tt> rather than <tt>wait()</tt> and <tt>notify()</tt>.
+     */
+    private static boolean parking;
+    /** The result of <tt>Thread.ofVirtual()</tt>, or <tt>null</tt>. */
+    private static Object virtualThreadBuilder = null;
+    private static Method unstarted;
 
     /**
      * A reference to the currently running TCB. It is initialized to
@@ -348,8 +568,8 @@ public final class TCB {
     private static TCB currentTCB = null;
 
     /**
-     * A vector containing all <i>running</i> TCB objects. It is initialized to
-     * an empty vector when the <tt>TCB</tt> class is loaded. TCB objects are
+     * A set containing all <i>running</i> TCB objects. It is initialized to
+     * an empty set when the <tt>TCB</tt> class is loaded. TCB objects are
      * added only in <tt>start(Runnable)</tt>, which can only be invoked once
      * on each TCB object. TCB objects are removed only in each of the
      * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
@@ -357,9 +577,10 @@ public final class TCB {
      * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
      * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
      * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once
-     * the first TCB is created, this vector is basically never empty.
+     * the first TCB is created, this set is basically never empty.
      */
-    private static Vector<TCB> runningThreads = new Vector<TCB>();
+    private static Set<TCB> runningThreads =
+	Collections.synchronizedSet(new HashSet<TCB>());
     
     private static Privilege privilege;
     private static KThread toBeDestroyed = null;
@@ -386,9 +607,10 @@ public final class TCB {
      * started and have not terminated. <tt>running</tt> is only <tt>true</tt>
      * when the associated Java thread ought to run ASAP. When starting or
      * destroying a TCB, this is temporarily true for a thread other than that
-     * of the current TCB.
+     * of the current TCB. It is volatile so that a parked thread sees it
+     * change.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -400,7 +622,6 @@ public final class TCB {
     private KThread nachosThread = null;
     private boolean associated = false;
     private Runnable target;
-    private Runnable tcbTarget;
 
     private static class TCBPrivilege implements Privilege.TCBPrivilege {
 	public void associateThread(KThread thread) {
@@ -13,6 +13,12 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is
  * a small degree of randomness here, so interrupts do not occur exactly every
  * 500 ticks.
+ *
+ * <p>
+ * The timer can also be programmed to interrupt once, at a specific time,
+ * using <tt>armAt()</tt>. Together with <tt>setPeriodic(false)</tt>, this
+ * lets a kernel that has nothing to time-slice take interrupts only when it
+ * actually needs them.
  */
 public final class Timer {
     /**
@@ -25,10 +31,18 @@ public final class Timer {
 	System.out.print(" timer");
 	
 	this.privilege = privilege;
+
+	timerType = privilege.interrupt.registerType("timer");
+	oneShotType = privilege.interrupt.registerType("timerOneShot");
+	autoGraderType = privilege.interrupt.registerType("timerAG");
 	
 	timerInterrupt = new Runnable() {
 		public void run() { timerInterrupt(); }
 	    };
+
+	oneShotInterrupt = new Runnable() {
+		public void run() { oneShotInterrupt(); }
+	    };
 	
 	autoGraderInterrupt = new Runnable() {
 		public void run() {
@@ -50,6 +64,72 @@ public final class Timer {
 	this.handler = handler;
     }
 
+    /**
+     * Turn the periodic timer interrupt on or off. It is on initially.
+     *
+     * @param	periodic	<tt>true</tt> to interrupt approximately every
+     *				500 clock ticks.
+     */
+    public void setPeriodic(boolean periodic) {
+	if (periodic == this.periodic)
+	    return;
+
+	this.periodic = periodic;
+
+	if (periodic)
+	    scheduleInterrupt();
+	else
+	    privilege.interrupt.cancel(periodicEvent);
+    }
+
+    /**
+     * Test whether the periodic timer interrupt is on.
+     *
+     * @return	<tt>true</tt> if the timer interrupts approximately every 500
+     *		clock ticks.
+     */
+    public boolean isPeriodic() {
+	return periodic;
+    }
+
+    /**
+     * Program the timer to interrupt once, at the specified time, replacing
+     * any time it was already armed for. The interrupt handler is called
+     * just as for a periodic interrupt. If the time has already passed, the
+     * interrupt occurs on the next clock tick.
+     *
+     * @param	time	the time at which to interrupt.
+     */
+    public void armAt(long time) {
+	disarm();
+
+	armedTime = time;
+	oneShotEvent = privilege.interrupt.schedule(Math.max(time-getTime(), 1),
+						    oneShotType,
+						    oneShotInterrupt);
+    }
+
+    /**
+     * Cancel the interrupt programmed by <tt>armAt()</tt>, if it has not
+     * occurred yet.
+     */
+    public void disarm() {
+	if (oneShotEvent != 0) {
+	    privilege.interrupt.cancel(oneShotEvent);
+	    oneShotEvent = 0;
+	}
+    }
+
+    /**
+     * Return the time the timer is armed for.
+     *
+     * @return	the time passed to <tt>armAt()</tt>, or <tt>-1</tt> if the
+     *		timer is not armed.
+     */
+    public long getArmedTime() {
+	return oneShotEvent != 0 ? armedTime : -1;
+    }
+
     /**
      * Get the current time.
      *
@@ -61,6 +141,15 @@ public final class Timer {
 
     private void timerInterrupt() {
 	scheduleInterrupt();
+	interrupt();
+    }
+
+    private void oneShotInterrupt() {
+	oneShotEvent = 0;
+	interrupt();
+    }
+
+    private void interrupt() {
 	scheduleAutoGraderInterrupt();
 
 	lastTimerInterrupt = getTime();
@@ -73,16 +162,25 @@ public final class Timer {
 	int delay = Stats.TimerTicks;
 	delay += Lib.random(delay/10) - (delay/20);
 
-	privilege.interrupt.schedule(delay, "timer", timerInterrupt);
+	periodicEvent = privilege.interrupt.schedule(delay, timerType,
+						     timerInterrupt);
     }
 
     private void scheduleAutoGraderInterrupt() {
-	privilege.interrupt.schedule(1, "timerAG", autoGraderInterrupt);
+	privilege.interrupt.schedule(1, autoGraderType, autoGraderInterrupt);
     }
 
     private long lastTimerInterrupt;
     private Runnable timerInterrupt;
+    private Runnable oneShotInterrupt;
     private Runnable autoGraderInterrupt;
+    private int timerType, oneShotType, autoGraderType;
+
+    private boolean periodic = true;
+    private long periodicEvent;
+    /** The handle of the interrupt programmed by <tt>armAt()</tt>, or 0. */
+    private long oneShotEvent = 0;
+    private long armedTime;
 
     private Privilege privilege;
     private Runnable handler = null;
@@ -139,16 +139,54 @@ public abstract class Privilege {
      * methods.
      */
     public interface InterruptPrivilege {
+	/**
+	 * Return the number that identifies a type of interrupt, assigning a
+	 * new number the first time a name is seen. Devices should look up
+	 * their types once, and schedule interrupts by number.
+	 *
+	 * @param	name	a name for the type of interrupt.
+	 * @return	the type number.
+	 */
+	public int registerType(String name);
+
 	/**
 	 * Schedule an interrupt to occur at some time in the future.
+	 * Interrupts due at the same time occur in the order they were
+	 * scheduled.
+	 *
+	 * @param	when	the number of ticks until the interrupt should
+	 *			occur.
+	 * @param	type	the type of interrupt being scheduled, returned
+	 *			by <tt>registerType()</tt>.
+	 * @param	handler	the interrupt handler to call.
+	 * @return	a handle that can be passed to <tt>cancel()</tt>. Handles
+	 *		are always positive.
+	 */
+	public long schedule(long when, int type, Runnable handler);
+
+	/**
+	 * Schedule an interrupt to occur at some time in the future. Same as
+	 * <tt>schedule(when, registerType(type), handler)</tt>.
 	 *
 	 * @param	when	the number of ticks until the interrupt should
 	 *			occur.
 	 * @param	type	a name for the type of interrupt being
 	 *			scheduled.
 	 * @param	handler	the interrupt handler to call.
+	 * @return	a handle that can be passed to <tt>cancel()</tt>.
+	 */
+	public long schedule(long when, String type, Runnable handler);
+
+	/**
+	 * Cancel a pending interrupt, so that its handler is never called.
+	 *
+	 * @param	handle	the handle returned when the interrupt was
+	 *			scheduled.
+	 * @return	<tt>true</tt> if the interrupt was cancelled, or
+	 *		<tt>false</tt> if it already occurred or was already
+	 *		cancelled.
 	 */
-	public void schedule(long when, String type, Runnable handler);
+	public boolean cancel(long handle);
 	
 	/**
 	 * Advance the simulated time.
@@ -158,6 +196,23 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Return the time at which the next pending interrupt is due.
+	 *
+	 * @return	the time of the earliest pending interrupt, or
+	 *		<tt>Long.MAX_VALUE</tt> if none are pending.
+	 */
+	public long nextPendingTime();
+
+	/**
+	 * Advance the simulated time by a number of user ticks at once. This
+	 * has the same effect as that many calls to <tt>tick(false)</tt>, and
+	 * may only be used if no interrupt becomes due during them.
+	 *
+	 * @param	ticks	the number of user ticks to account for.
+	 */
+	public void settleUserTicks(long ticks);
     }
 
     /**
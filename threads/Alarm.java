@@ -6,6 +6,13 @@ import nachos.machine.*;
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * If <tt>Alarm.tickless</tt> is set in <tt>nachos.conf</tt>, the periodic
+ * timer interrupt is turned off whenever no thread is waiting to run, since
+ * there is nothing to preempt the current thread for. The timer is then
+ * programmed to interrupt once, when the earliest sleeping thread is due to
+ * wake up.
  */
 public class Alarm {
     /**
@@ -16,6 +23,8 @@ public class Alarm {
      * alarm.
      */
     public Alarm() {
+	tickless = Config.getBoolean("Alarm.tickless", false);
+
 	Machine.timer().setInterruptHandler(new Runnable() {
 		public void run() { timerInterrupt(); }
 	    });
@@ -25,7 +34,8 @@ public class Alarm {
      * The timer interrupt handler. This is called by the machine's timer
      * periodically (approximately every 500 clock ticks). Causes the current
      * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * that should be run, unless the scheduler says its time slice has not
+     * run out.
      */
     public void timerInterrupt() {
    // System.out.println(Machine.timer().getTime());
@@ -38,7 +48,9 @@ public class Alarm {
             }   else
                 break;
         }
-        KThread.currentThread().yield();
+	programTimer();
+	if (ThreadedKernel.scheduler.quantumExpired(KThread.currentThread()))
+	    KThread.currentThread().yield();
     }
 
     /**
@@ -65,12 +77,102 @@ public class Alarm {
         tpt.setThread(KThread.currentThread());
         tpt.setwake_time(wake_time);
         Threadset.add(tpt);
+	programTimer();
         KThread.currentThread().sleep();
 		      
         Machine.interrupt().restore(intStatus);
     }
+
+    /**
+     * Called by <tt>KThread.ready()</tt> when a thread is added to a ready
+     * queue that was empty, so that the current thread can be preempted
+     * again. Interrupts must be disabled.
+     */
+    void threadReady() {
+	programTimer();
+    }
+
+    /**
+     * In tickless mode, use the periodic timer interrupt only while there
+     * are threads waiting to run, and otherwise arm the timer for the
+     * earliest wake time. Interrupts must be disabled.
+     */
+    private void programTimer() {
+	if (!tickless)
+	    return;
+
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Timer timer = Machine.timer();
+
+	if (KThread.getNumReadyThreads() > 0) {
+	    timer.disarm();
+	    timer.setPeriodic(true);
+	}
+	else {
+	    timer.setPeriodic(false);
+
+	    if (Threadset.isEmpty())
+		timer.disarm();
+	    else if (timer.getArmedTime() != Threadset.first().getwake_time())
+		timer.armAt(Threadset.first().getwake_time());
+	}
+    }
     
-    
+    /**
+     * Test that sleeping threads wake up in order of their wake times, and
+     * not before them, and that threads with the same wake time all wake up,
+     * in the order they went to sleep.
+     */
+    public static void selfTest() {
+	final long[] waits = { 3000, 1000, 2000 };
+	final int[] order = new int[waits.length];
+	final int[] numWoken = new int[1];
+	KThread[] threads = new KThread[waits.length];
+
+	for (int i=0; i<threads.length; i++) {
+	    final int index = i;
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			long start = Machine.timer().getTime();
+			ThreadedKernel.alarm.waitUntil(waits[index]);
+			Lib.assertTrue(Machine.timer().getTime() >=
+				       start + waits[index]);
+			order[numWoken[0]++] = index;
+		    }
+		}).setName("alarm test " + i);
+	    threads[i].fork();
+	}
+
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+
+	Lib.assertTrue(order[0] == 1 && order[1] == 2 && order[2] == 0);
+
+	final long wake = Machine.timer().getTime() + 2000;
+	numWoken[0] = 0;
+
+	for (int i=0; i<threads.length; i++) {
+	    final int index = i;
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			long now = Machine.timer().getTime();
+			ThreadedKernel.alarm.waitUntil(wake - now);
+			order[numWoken[0]++] = index;
+		    }
+		}).setName("alarm tie test " + i);
+	    threads[i].fork();
+	}
+
+	// a thread lost from the wait set would never wake to be joined
+	ThreadedKernel.alarm.waitUntil(wake + 1000 - Machine.timer().getTime());
+	Lib.assertTrue(numWoken[0] == threads.length);
+
+	for (int i=0; i<threads.length; i++) {
+	    threads[i].join();
+	    Lib.assertTrue(order[i] == i);
+	}
+    }
     
     public class TimePlusTread implements Comparable{
         private KThread thread;
@@ -93,10 +195,20 @@ public class Alarm {
                 return -1;
             if (this.wake_time>p_time)
                 return 1;
+            // threads waking at the same time must not replace each other
+            long p_sequence=((TimePlusTread)p).sequence;
+            if (this.sequence<p_sequence)
+                return -1;
+            if (this.sequence>p_sequence)
+                return 1;
             return 0;
         }
+        private long sequence=numWaits++;
     }
     
     
     TreeSet<TimePlusTread>  Threadset= new TreeSet<TimePlusTread>();
+    private long numWaits=0;
+
+    private boolean tickless;
 }
@@ -1,49 +1,146 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import nachos.threads.*;
 
+import java.util.LinkedList;
+
+/**
+ * A <i>communicator</i> allows threads to synchronously exchange 32-bit
+ * messages. Multiple threads can be waiting to <i>speak</i>,
+ * and multiple threads can be waiting to <i>listen</i>. But there should never
+ * be a time when both a speaker and a listener are waiting, because the two
+ * threads can be paired off at this point.
+ *
+ * <p>
+ * A thread that finds a partner waiting hands the word over and returns at
+ * once, so no thread ever waits for a particular partner to be scheduled, only
+ * for the communicator's lock, which transfers priority. Waiting listeners
+ * are woken in the scheduler's order, so a high-priority listener gets the
+ * next word first.
+ */
 public class Communicator {
+    /**
+     * Allocate a new communicator.
+     */
     public Communicator() {
-        lock = new Lock();
-        speakCondition = new Condition(lock);
-        listenCondition = new Condition(lock);
-        anotherCondition = new Condition(lock);
+	lock = new Lock();
+	listenCondition = new Condition2(lock);
+	heardCondition = new Condition2(lock);
     }
 
+    /**
+     * Wait for a thread to listen through this communicator, and then transfer
+     * <i>word</i> to the listener.
+     *
+     * <p>
+     * Does not return until this thread is paired up with a listening thread.
+     * Exactly one listener should receive <i>word</i>.
+     *
+     * @param	word	the integer to transfer.
+     */
     public void speak(int word) {
-        lock.acquire();
-        ++speaker;
-        while (listener == 0 || isSpeaking) {
-            speakCondition.sleep();
-        }
-        isSpeaking = true;
-        this.word = word;
-        listenCondition.wakeAll();
-        --speaker;
-        anotherCondition.sleep();
-        lock.release();
+	lock.acquire();
+
+	if (waitingListeners > 0) {
+	    // promise the word to one of the waiting listeners
+	    waitingListeners--;
+	    promisedWords.add(word);
+	    listenCondition.wake();
+	}
+	else {
+	    long spoken = wordsSpoken++;
+	    spokenWords.add(word);
+
+	    // words are heard in the order they were spoken
+	    while (wordsHeard <= spoken)
+		heardCondition.sleep();
+	}
+
+	lock.release();
     }
 
+    /**
+     * Wait for a thread to speak through this communicator, and then return
+     * the <i>word</i> that thread passed to <tt>speak()</tt>.
+     *
+     * @return	the integer transferred.
+     */
     public int listen() {
-        lock.acquire();
-        ++listener;
-        while (!isSpeaking) {
-            speakCondition.wake();
-            listenCondition.sleep();
-        }
-        isSpeaking = false;
-        int message = word;
-        --listener;
-        anotherCondition.wake();
-        lock.release();
-	return message;
+	int word;
+
+	lock.acquire();
+
+	if (!spokenWords.isEmpty()) {
+	    word = spokenWords.removeFirst();
+	    wordsHeard++;
+	    heardCondition.wakeAll();
+	}
+	else {
+	    // any waiting listener may take a promised word, since they are
+	    // all counted alike
+	    waitingListeners++;
+	    while (promisedWords.isEmpty())
+		listenCondition.sleep();
+	    word = promisedWords.removeFirst();
+	}
+
+	lock.release();
+
+	return word;
+    }
+
+    /**
+     * Test that every word spoken by several speakers is heard by exactly one
+     * of several listeners, whichever arrives first.
+     */
+    public static void selfTest() {
+	final Communicator communicator = new Communicator();
+	final int speakers = 3, listeners = 4, words = 12;
+	final int[] heard = new int[speakers * words];
+	KThread[] threads = new KThread[speakers + listeners];
+
+	for (int i=0; i<speakers; i++) {
+	    final int speaker = i;
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<words; j++) {
+			    communicator.speak(speaker*words + j);
+			    if (j % 3 == speaker)
+				KThread.yield();
+			}
+		    }
+		}).setName("speaker " + i);
+	}
+
+	for (int i=0; i<listeners; i++) {
+	    threads[speakers + i] = new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<speakers*words/listeners; j++)
+			    heard[communicator.listen()]++;
+		    }
+		}).setName("listener " + i);
+	}
+
+	for (int i=0; i<threads.length; i++)
+	    threads[i].fork();
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+
+	for (int i=0; i<heard.length; i++)
+	    Lib.assertTrue(heard[i] == 1);
     }
 
-    private boolean isSpeaking = false;
-    // private boolean notReceive = false;
-    private int speaker = 0, listener = 0;
     private Lock lock;
-    private Condition speakCondition, listenCondition, anotherCondition;
-    private int word;
+    /** Listeners wait here for a speaker to promise them a word. */
+    private Condition2 listenCondition;
+    /** Speakers wait here for a listener to hear their word. */
+    private Condition2 heardCondition;
+
+    /** The number of listeners waiting that have not been promised a word. */
+    private int waitingListeners = 0;
+    /** Words promised to waiting listeners, but not yet taken. */
+    private LinkedList<Integer> promisedWords = new LinkedList<Integer>();
+    /** Words of waiting speakers, in the order they were spoken. */
+    private LinkedList<Integer> spokenWords = new LinkedList<Integer>();
+    private long wordsSpoken = 0, wordsHeard = 0;
 }
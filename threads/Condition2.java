@@ -1,14 +1,15 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import java.util.LinkedList;
 
 /**
  * An implementation of condition variables that disables interrupt()s for
  * synchronization.
  *
  * <p>
- * You must implement this.
+ * Sleeping threads wait on a thread queue of the scheduler, so they are woken
+ * in the scheduler's order: under a priority scheduler, the thread with the
+ * highest priority is woken first.
  *
  * @see	nachos.threads.Condition
  */
@@ -23,7 +24,6 @@ public class Condition2 {
      */
     public Condition2(Lock conditionLock) {
 	this.conditionLock = conditionLock;
-	waitQueue = new LinkedList<KThread>();
     }
 
     /**
@@ -33,16 +33,16 @@ public class Condition2 {
      * automatically reacquire the lock before <tt>sleep()</tt> returns.
      */
     public void sleep() {
-		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
-		
-		// new
-		boolean intStatus = Machine.interrupt().disable();
-		conditionLock.release();
-		waitQueue.add(KThread.currentThread());
-		KThread.sleep();
-		conditionLock.acquire();
-		Machine.interrupt().restore(intStatus);
-		// new
+	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	conditionLock.release();
+	waitQueue.waitForAccess(KThread.currentThread());
+	KThread.sleep();
+	conditionLock.acquire();
+
+	Machine.interrupt().restore(intStatus);
     }
 
     /**
@@ -50,16 +50,15 @@ public class Condition2 {
      * current thread must hold the associated lock.
      */
     public void wake() {
-		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
-		
-		// new
-		boolean intStatus = Machine.interrupt().disable();
-		if (!waitQueue.isEmpty()) {
-			KThread waitThread = waitQueue.remove();
-			waitThread.ready();
-		}
-		Machine.interrupt().restore(intStatus);
-		// new
+	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = waitQueue.nextThread();
+	if (thread != null)
+	    thread.ready();
+
+	Machine.interrupt().restore(intStatus);
     }
 
     /**
@@ -67,15 +66,18 @@ public class Condition2 {
      * thread must hold the associated lock.
      */
     public void wakeAll() {
-		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
-		
-		// new
-		while (!waitQueue.isEmpty()) {
-			wake();
-		}
-		// new
+	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread;
+	while ((thread = waitQueue.nextThread()) != null)
+	    thread.ready();
+
+	Machine.interrupt().restore(intStatus);
     }
 
     private Lock conditionLock;
-    private LinkedList<KThread> waitQueue;
+    private ThreadQueue waitQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
 }
@@ -0,0 +1,140 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A kernel that measures the cost of switching between kernel threads, and
+ * of forking and joining them, on whichever JVM threads <tt>TCB.threads</tt>
+ * selects.
+ *
+ * <p>
+ * To run it, set <tt>Kernel.kernel</tt> to
+ * <tt>nachos.threads.ContextSwitchBenchmark</tt> in <tt>nachos.conf</tt>,
+ * and compare runs with <tt>TCB.threads</tt> set to <tt>platform</tt> and to
+ * <tt>virtual</tt>. It reports:
+ *
+ * <ul>
+ * <li>for each number of threads in <tt>ContextSwitchBenchmark.threads</tt>,
+ * the time per context switch while that many threads yield to each other,
+ * <tt>ContextSwitchBenchmark.switches</tt> times in all. A count above
+ * <tt>TCB.maxThreads</tt> is skipped; and
+ * <li>the time to fork a thread that returns at once and join it, repeated
+ * <tt>ContextSwitchBenchmark.forks</tt> times.
+ * </ul>
+ *
+ * <p>
+ * Each measurement is preceded by an untimed one of the same size, so the JIT
+ * compiler can warm up and, with <tt>TCB.poolSize</tt>, idle JVM threads are
+ * there to be used again. The timer still interrupts, so a few of the
+ * switches are preemptions rather than yields.
+ */
+public class ContextSwitchBenchmark extends ThreadedKernel {
+    /**
+     * Allocate a new context switch benchmark.
+     */
+    public ContextSwitchBenchmark() {
+	super();
+    }
+
+    /**
+     * Initialize this kernel, and read the configuration of the benchmark.
+     */
+    public void initialize(String[] args) {
+	super.initialize(args);
+
+	String[] values =
+	    Config.getString("ContextSwitchBenchmark.threads",
+			     "2,100,10000").split(",");
+	numThreads = new int[values.length];
+	for (int i=0; i<numThreads.length; i++) {
+	    numThreads[i] = Integer.parseInt(values[i].trim());
+	    Lib.assertTrue(numThreads[i] > 0,
+			   "ContextSwitchBenchmark.threads must be positive");
+	}
+
+	switches = Config.getInteger("ContextSwitchBenchmark.switches",
+				     200000);
+	forks = Config.getInteger("ContextSwitchBenchmark.forks", 20000);
+	Lib.assertTrue(switches > 0 && forks > 0);
+    }
+
+    /**
+     * The benchmark does not run the kernel's self tests.
+     */
+    public void selfTest() {
+    }
+
+    /**
+     * Run the benchmark.
+     */
+    public void run() {
+	for (int i=0; i<numThreads.length; i++) {
+	    int n = numThreads[i];
+
+	    // the main and idle threads have TCBs as well
+	    if (n + 2 > TCB.getMaxThreads()) {
+		System.out.println(n + " threads yielding: skipped, " +
+				   "TCB.maxThreads is " + TCB.getMaxThreads());
+		continue;
+	    }
+
+	    int rounds = Math.max(switches / n, 1);
+
+	    yieldThreads(n, rounds);
+	    long time = System.nanoTime();
+	    yieldThreads(n, rounds);
+	    time = System.nanoTime() - time;
+
+	    System.out.println(n + " threads yielding: " +
+			       time / ((long) n * rounds) + " ns/switch");
+	}
+
+	forkThreads();
+	long time = System.nanoTime();
+	forkThreads();
+	time = System.nanoTime() - time;
+
+	System.out.println("fork and join: " + time / forks + " ns/thread");
+    }
+
+    /**
+     * Fork <i>n</i> threads that each yield <i>rounds</i> times, and wait
+     * for them all to finish.
+     */
+    private void yieldThreads(int n, final int rounds) {
+	KThread[] threads = new KThread[n];
+
+	for (int i=0; i<n; i++) {
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<rounds; j++)
+			    KThread.yield();
+		    }
+		}).setName("yield " + i);
+	    threads[i].fork();
+	}
+
+	for (int i=0; i<n; i++)
+	    threads[i].join();
+    }
+
+    /**
+     * Fork a thread that does nothing and join it, <tt>forks</tt> times.
+     */
+    private void forkThreads() {
+	Runnable nothing = new Runnable() {
+		public void run() {
+		}
+	    };
+
+	for (int i=0; i<forks; i++) {
+	    KThread thread = new KThread(nothing).setName("fork " + i);
+	    thread.fork();
+	    thread.join();
+	}
+    }
+
+    private int[] numThreads;
+    private int switches;
+    private int forks;
+}
@@ -0,0 +1,834 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.PriorityQueue;
+
+/**
+ * A scheduler that runs real-time threads earliest deadline first, beside a
+ * best-effort scheduler for all other threads.
+ *
+ * <p>
+ * A thread becomes a real-time thread by declaring a period, a budget and a
+ * relative deadline with <tt>setRealTime()</tt>. It then runs one job every
+ * period, which should need no more than the budget of CPU time and finish
+ * within the deadline of the start of the period. A job ends when the thread
+ * calls <tt>waitForNextPeriod()</tt>.
+ *
+ * <p>
+ * A real-time thread is only admitted if the total density of the real-time
+ * threads, the sum of each budget divided by its deadline, stays within
+ * <tt>EDFScheduler.utilizationBound</tt> in <tt>nachos.conf</tt> (1 by
+ * default). Within that bound, earliest deadline first meets every deadline,
+ * as long as each job stays within its budget.
+ *
+ * <p>
+ * Waiting real-time threads always come before best-effort threads, in order
+ * of deadline. A real-time thread made ready with an earlier deadline than
+ * the current thread preempts it at the next timer interrupt. Best-effort
+ * threads are scheduled by the scheduler named by
+ * <tt>EDFScheduler.bestEffort</tt> (round robin by default), which also
+ * keeps their priorities. Real-time threads do not donate priority, but one
+ * that takes a queue from a best-effort thread takes the donations made to
+ * it along.
+ *
+ * <p>
+ * Instead, the holder of a queue that transfers priority inherits the
+ * earliest deadline of the real-time threads waiting for it, until it gives
+ * the queue up. A best-effort holder is scheduled as a real-time thread
+ * meanwhile, so it cannot keep a real-time thread waiting behind other
+ * best-effort threads, and the deadline is carried along a chain of holders
+ * waiting for each other.
+ *
+ * <p>
+ * Budgets are enforced at each timer interrupt, as by a constant bandwidth
+ * server: a thread that has used up its budget gets a new one, with its
+ * deadline postponed by a period, so it can keep running without taking
+ * more than its share from the other real-time threads. A job that finishes
+ * after its own deadline has missed it, and the miss is counted in the
+ * machine's statistics.
+ */
+public class EDFScheduler extends Scheduler {
+    /**
+     * Allocate a new EDF scheduler, and the best-effort scheduler it runs
+     * beside.
+     */
+    public EDFScheduler() {
+	this((Scheduler) Lib.constructObject(
+		 Config.getString("EDFScheduler.bestEffort",
+				  "nachos.threads.RoundRobinScheduler")),
+	     Config.getDouble("EDFScheduler.utilizationBound", 1.0));
+    }
+
+    /**
+     * Allocate a new EDF scheduler beside the specified best-effort
+     * scheduler.
+     *
+     * @param	bestEffort		the best-effort scheduler.
+     * @param	utilizationBound	the most total density of the real-time
+     *					threads that is admitted.
+     */
+    EDFScheduler(Scheduler bestEffort, double utilizationBound) {
+	this.bestEffort = bestEffort;
+	this.utilizationBound = utilizationBound;
+    }
+
+    /**
+     * Allocate a new EDF thread queue, which holds best-effort threads in a
+     * queue of the best-effort scheduler.
+     *
+     * @param	transferPriority	<tt>true</tt> if the best-effort queue
+     *					should transfer priority from waiting
+     *					threads to the owning thread.
+     * @return	a new EDF thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new EDFQueue(bestEffort.newThreadQueue(transferPriority),
+			    transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+	return bestEffort.getPriority(thread);
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return bestEffort.getEffectivePriority(thread);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	bestEffort.setPriority(thread, priority);
+    }
+
+    public boolean increasePriority() {
+	return bestEffort.increasePriority();
+    }
+
+    public boolean decreasePriority() {
+	return bestEffort.decreasePriority();
+    }
+
+    public boolean transfersPriority() {
+	return bestEffort.transfersPriority();
+    }
+
+    /**
+     * Make a thread a real-time thread, if the real-time threads can still
+     * meet their deadlines with it. Its first job starts now. Must be called
+     * with interrupts disabled.
+     *
+     * @param	thread		the thread.
+     * @param	period		the time between the starts of its jobs, in
+     *				ticks.
+     * @param	budget		the CPU time each job may use, in ticks.
+     * @param	deadline	the time from the start of each job by which
+     *				it must finish, in ticks.
+     * @return	<tt>true</tt> if the thread was admitted, or <tt>false</tt> if
+     *		its density would exceed the utilization bound.
+     */
+    public boolean setRealTime(KThread thread, long period, long budget,
+			       long deadline) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(budget > 0 && budget <= deadline && deadline <= period);
+
+	double density = 0;
+	for (RealTimeState state : realTime.values()) {
+	    if (state.thread != thread)
+		density += state.getDensity();
+	}
+
+	if (density + (double) budget / deadline > utilizationBound)
+	    return false;
+
+	realTime.put(thread, new RealTimeState(thread, period, budget,
+					       deadline));
+	return true;
+    }
+
+    /**
+     * Make a real-time thread a best-effort thread again, and give back its
+     * reservation. Must be called with interrupts disabled.
+     *
+     * @param	thread	the thread.
+     */
+    public void clearRealTime(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	realTime.remove(thread);
+    }
+
+    /**
+     * A finished real-time thread gives its reservation back.
+     *
+     * @param	thread	the thread that is finishing.
+     */
+    public void threadFinished(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	realTime.remove(thread);
+	queueStates.remove(thread);
+	bestEffort.threadFinished(thread);
+    }
+
+    /**
+     * End the current real-time thread's job, and wait for the start of its
+     * next period. Returns immediately if that has already passed. Because
+     * the alarm wakes threads at timer interrupts, the next job may start
+     * running a little after its period starts.
+     */
+    public void waitForNextPeriod() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	RealTimeState state = realTime.get(KThread.currentThread());
+	Lib.assertTrue(state != null);
+
+	long time = Machine.timer().getTime();
+	state.charge(time);
+	state.done = true;
+
+	long wait = state.release + state.period - time;
+	if (wait > 0)
+	    ThreadedKernel.alarm.waitUntil(wait);
+
+	state.update(Machine.timer().getTime());
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the number of deadlines a real-time thread has missed.
+     *
+     * @param	thread	the thread.
+     * @return	the number of deadlines it has missed, or 0 if it is not a
+     *		real-time thread.
+     */
+    public int getDeadlineMisses(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	RealTimeState state = realTime.get(thread);
+	return (state == null) ? 0 : state.misses;
+    }
+
+    /**
+     * Return the deadline a thread is scheduled by: the earlier of its own,
+     * if it is a real-time thread, and the one it inherits.
+     *
+     * @param	thread	the thread.
+     * @return	the deadline, or <tt>Long.MAX_VALUE</tt> if the thread is a
+     *		best-effort thread that inherits none.
+     */
+    long getDeadline(KThread thread) {
+	RealTimeState state = realTime.get(thread);
+	long deadline = (state == null) ? Long.MAX_VALUE : state.deadline;
+
+	return Math.min(deadline, getInheritedDeadline(thread));
+    }
+
+    /**
+     * Return the earliest deadline of the real-time threads waiting for the
+     * queues a thread holds.
+     *
+     * @param	thread	the thread.
+     * @return	the deadline it inherits, or <tt>Long.MAX_VALUE</tt> if none.
+     */
+    long getInheritedDeadline(KThread thread) {
+	long deadline = Long.MAX_VALUE;
+
+	QueueState queueState = queueStates.get(thread);
+	if (queueState != null) {
+	    for (EDFQueue queue : queueState.held)
+		deadline = Math.min(deadline, queue.getEarliestDeadline());
+	}
+
+	return deadline;
+    }
+
+    private QueueState getQueueState(KThread thread) {
+	QueueState queueState = queueStates.get(thread);
+	if (queueState == null) {
+	    queueState = new QueueState(thread);
+	    queueStates.put(thread, queueState);
+	}
+
+	return queueState;
+    }
+
+    /**
+     * Move a waiting thread to the place its deadline now gives it in its
+     * queue, and carry the change along the chain of threads holding the
+     * queues it waits on.
+     *
+     * @param	thread	the thread whose deadline may have changed.
+     */
+    private void updateDeadline(KThread thread) {
+	while (thread != null) {
+	    QueueState queueState = queueStates.get(thread);
+	    if (queueState == null || queueState.waitingOn == null)
+		return;
+
+	    long deadline = getDeadline(thread);
+	    if (deadline == queueState.getWaitingDeadline())
+		return;
+
+	    EDFQueue queue = queueState.waitingOn;
+	    queue.remove(queueState);
+	    queue.add(queueState, deadline);
+
+	    thread = queue.holder;
+	}
+    }
+
+    /**
+     * Charge a running real-time thread for its CPU time, postponing its
+     * deadline if it has used up its budget, and decide whether it should be
+     * preempted. Best-effort threads are left to the best-effort scheduler,
+     * unless a real-time thread is waiting to run, or they inherit a
+     * deadline.
+     *
+     * @param	thread	the current thread.
+     * @return	<tt>true</tt> if the current thread should yield.
+     */
+    public boolean quantumExpired(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long ready = readyDeadline;
+	readyDeadline = Long.MAX_VALUE;
+
+	long inherited = getInheritedDeadline(thread);
+
+	RealTimeState state = realTime.get(thread);
+	if (state == null || state.done) {
+	    if (inherited != Long.MAX_VALUE)
+		return ready < inherited;
+
+	    return ready != Long.MAX_VALUE || bestEffort.quantumExpired(thread);
+	}
+
+	long deadline = state.deadline;
+	state.charge(Machine.timer().getTime());
+
+	return (state.deadline != deadline ||
+		ready < Math.min(state.deadline, inherited));
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds waiting real-time threads, and
+     * threads that inherit a deadline, in a heap ordered by deadline, and
+     * best-effort threads in a queue of the best-effort scheduler.
+     */
+    protected class EDFQueue extends ThreadQueue {
+	EDFQueue(ThreadQueue bestEffortQueue, boolean transferPriority) {
+	    this.bestEffortQueue = bestEffortQueue;
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    RealTimeState state = realTime.get(thread);
+	    if (state != null)
+		state.update(Machine.timer().getTime());
+
+	    QueueState queueState = getQueueState(thread);
+	    Lib.assertTrue(queueState.waitingOn == null);
+	    queueState.waitingOn = this;
+
+	    long deadline = getDeadline(thread);
+	    add(queueState, deadline);
+
+	    // only a thread being woken up or forked is not the current thread
+	    if (thread != KThread.currentThread())
+		readyDeadline = Math.min(readyDeadline, deadline);
+
+	    if (deadline != Long.MAX_VALUE)
+		updateDeadline(holder);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    bestEffortQueue.acquire(thread);
+	    setHolder(thread);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    KThread thread;
+	    Waiter waiter = realTimeQueue.poll();
+	    if (waiter == null) {
+		thread = bestEffortQueue.nextThread();
+	    }
+	    else {
+		thread = waiter.thread;
+
+		/* The holder gives up this queue just as if a best-effort
+		 * thread took it, so it must not keep the donations of the
+		 * best-effort threads still waiting. Only a queue that tracks
+		 * its holder can be told of a holder that did not wait in it.
+		 */
+		if (tracksHolder())
+		    bestEffortQueue.acquire(thread);
+	    }
+
+	    if (thread != null) {
+		QueueState queueState = queueStates.get(thread);
+		queueState.waitingOn = null;
+		queueState.waiter = null;
+	    }
+
+	    setHolder(thread);
+	    return thread;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (Waiter waiter : realTimeQueue)
+		System.out.print(waiter.thread + "(" + waiter.deadline + ") ");
+
+	    bestEffortQueue.print();
+	}
+
+	/**
+	 * Return the deadline the holder of this queue inherits.
+	 *
+	 * @return	the earliest deadline of a thread waiting here, or
+	 *		<tt>Long.MAX_VALUE</tt> if none has one.
+	 */
+	long getEarliestDeadline() {
+	    Waiter waiter = realTimeQueue.peek();
+	    return (waiter == null) ? Long.MAX_VALUE : waiter.deadline;
+	}
+
+	/**
+	 * Make a thread the holder of this queue, if it transfers priority,
+	 * so that it inherits the deadlines of the real-time threads waiting
+	 * here instead of the old holder.
+	 */
+	private void setHolder(KThread thread) {
+	    if (!transferPriority || thread == holder)
+		return;
+
+	    // a finishing holder has already been forgotten
+	    KThread oldHolder = holder;
+	    if (oldHolder != null && queueStates.containsKey(oldHolder))
+		queueStates.get(oldHolder).held.remove(this);
+
+	    holder = thread;
+	    if (thread != null)
+		getQueueState(thread).held.add(this);
+
+	    updateDeadline(oldHolder);
+	    updateDeadline(thread);
+	}
+
+	/**
+	 * Add a waiting thread to the heap of real-time threads, or to the
+	 * best-effort queue if it has no deadline.
+	 */
+	private void add(QueueState queueState, long deadline) {
+	    if (deadline == Long.MAX_VALUE) {
+		bestEffortQueue.waitForAccess(queueState.thread);
+		return;
+	    }
+
+	    queueState.waiter = new Waiter(queueState.thread, deadline,
+					   numWaits++);
+	    realTimeQueue.add(queueState.waiter);
+	}
+
+	/**
+	 * Take a waiting thread back out of this queue. A best-effort queue
+	 * can only give its threads up in its own order, so it is emptied and
+	 * all but this thread put back in the order they came out in; this
+	 * only happens when a best-effort thread inherits a deadline while it
+	 * waits.
+	 */
+	private void remove(QueueState queueState) {
+	    if (queueState.waiter != null) {
+		realTimeQueue.remove(queueState.waiter);
+		queueState.waiter = null;
+		return;
+	    }
+
+	    LinkedList<KThread> others = new LinkedList<KThread>();
+	    KThread thread;
+	    while ((thread = bestEffortQueue.nextThread()) != null) {
+		if (thread != queueState.thread)
+		    others.add(thread);
+	    }
+
+	    for (KThread other : others)
+		bestEffortQueue.waitForAccess(other);
+
+	    if (tracksHolder() && holder != null)
+		bestEffortQueue.acquire(holder);
+	}
+
+	private boolean tracksHolder() {
+	    return transferPriority && bestEffort.transfersPriority();
+	}
+
+	private ThreadQueue bestEffortQueue;
+	private boolean transferPriority;
+	/** The thread holding this queue, if it transfers priority. */
+	private KThread holder = null;
+	/** The waiting threads that have a deadline, as a heap ordered by
+	 * deadline. */
+	private PriorityQueue<Waiter> realTimeQueue =
+	    new PriorityQueue<Waiter>();
+	/** The number of threads that have ever waited here with a
+	 * deadline. */
+	private long numWaits = 0;
+    }
+
+    /**
+     * A thread waiting in the heap of an <tt>EDFQueue</tt>, with the
+     * deadline it had when it started waiting.
+     */
+    private static class Waiter implements Comparable<Waiter> {
+	Waiter(KThread thread, long deadline, long waitSequence) {
+	    this.thread = thread;
+	    this.deadline = deadline;
+	    this.waitSequence = waitSequence;
+	}
+
+	public int compareTo(Waiter waiter) {
+	    if (deadline != waiter.deadline)
+		return (deadline < waiter.deadline) ? -1 : 1;
+	    else if (waitSequence != waiter.waitSequence)
+		return (waitSequence < waiter.waitSequence) ? -1 : 1;
+	    else
+		return 0;
+	}
+
+	KThread thread;
+	long deadline;
+	/** The order in which this thread started waiting on its queue. */
+	long waitSequence;
+    }
+
+    /**
+     * The queue a thread is waiting for, and the queues it holds, so that
+     * it can be moved when the deadline it inherits changes.
+     */
+    private class QueueState {
+	QueueState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Return the deadline this thread waits with.
+	 *
+	 * @return	its deadline in the heap of the queue it waits for, or
+	 *		<tt>Long.MAX_VALUE</tt> if it waits in the best-effort
+	 *		queue.
+	 */
+	long getWaitingDeadline() {
+	    return (waiter == null) ? Long.MAX_VALUE : waiter.deadline;
+	}
+
+	KThread thread;
+	/** The queue this thread is waiting for, or <tt>null</tt>. */
+	EDFQueue waitingOn = null;
+	/** This thread in the heap of that queue, or <tt>null</tt> if it
+	 * waits in the best-effort queue. */
+	Waiter waiter = null;
+	/** The queues that transfer priority held by this thread. */
+	LinkedList<EDFQueue> held = new LinkedList<EDFQueue>();
+    }
+
+    /**
+     * The reservation of a real-time thread, and the state of its current
+     * job.
+     */
+    private class RealTimeState {
+	RealTimeState(KThread thread, long period, long budget,
+		      long relativeDeadline) {
+	    this.thread = thread;
+	    this.period = period;
+	    this.budget = budget;
+	    this.relativeDeadline = relativeDeadline;
+
+	    release = Machine.timer().getTime();
+	    jobDeadline = deadline = release + relativeDeadline;
+	    chargedTicks = thread.getRunTicks();
+	}
+
+	double getDensity() {
+	    return (double) budget / relativeDeadline;
+	}
+
+	/**
+	 * Charge the thread for the CPU time it has used since it was last
+	 * charged, and start its next job if the current one has ended and
+	 * its next period has started.
+	 */
+	void update(long time) {
+	    charge(time);
+
+	    if (done && time >= release + period) {
+		// a job that overran skips the periods that have gone by
+		release += (time - release) / period * period;
+		jobDeadline = deadline = release + relativeDeadline;
+		used = 0;
+		done = false;
+		missed = false;
+	    }
+	}
+
+	/**
+	 * Charge the thread for the CPU time it has used since it was last
+	 * charged. Each time the budget is used up, it is replenished and the
+	 * deadline is postponed by a period.
+	 */
+	void charge(long time) {
+	    long runTicks = thread.getRunTicks();
+	    used += runTicks - chargedTicks;
+	    chargedTicks = runTicks;
+
+	    while (used >= budget) {
+		used -= budget;
+		deadline += period;
+	    }
+
+	    if (!done && !missed && time > jobDeadline) {
+		missed = true;
+		misses++;
+		Machine.autoGrader().deadlineMissed(thread);
+	    }
+	}
+
+	KThread thread;
+	long period, budget, relativeDeadline;
+
+	/** The start of the current job's period. */
+	long release;
+	/** The deadline of the current job. */
+	long jobDeadline;
+	/** The deadline the thread is scheduled by, after postponements. */
+	long deadline;
+	/** The CPU time used since the budget was last replenished. */
+	long used = 0;
+	/** <tt>true</tt> if the current job has ended. */
+	boolean done = false;
+	/** <tt>true</tt> if the current job has missed its deadline. */
+	boolean missed = false;
+	/** The number of jobs that have missed their deadlines. */
+	int misses = 0;
+
+	/** The run time of the thread when it was last charged. */
+	private long chargedTicks;
+    }
+
+    /**
+     * Test admission control, and that two real-time threads within their
+     * budgets meet all their deadlines while a third overruns its own and
+     * two best-effort threads compete for the CPU. Only runs if this is the
+     * scheduler in use.
+     */
+    public static void selfTest() {
+	inheritanceTest(new RoundRobinScheduler());
+	handOffTest();
+
+	if (!(ThreadedKernel.scheduler instanceof EDFScheduler))
+	    return;
+
+	final EDFScheduler scheduler = (EDFScheduler) ThreadedKernel.scheduler;
+	final long end = Machine.timer().getTime() + 200000;
+	final int[] misses = new int[3];
+
+	// period, budget, and CPU time used by each job
+	long[][] tasks = {
+	    { 10000, 2000, 1500 },
+	    { 15000, 4500, 3500 },
+	    { 20000, 2000, 15000 },
+	};
+	KThread[] threads = new KThread[tasks.length + 2];
+
+	for (int i=0; i<tasks.length; i++) {
+	    final int index = i;
+	    final long work = tasks[i][2];
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			KThread thread = KThread.currentThread();
+			while (Machine.timer().getTime() < end) {
+			    long start = thread.getRunTicks();
+			    while (thread.getRunTicks() - start < work)
+				spin();
+			    scheduler.waitForNextPeriod();
+			}
+
+			boolean intStatus = Machine.interrupt().disable();
+			misses[index] = scheduler.getDeadlineMisses(thread);
+			Machine.interrupt().restore(intStatus);
+		    }
+		}).setName("edf " + i);
+	}
+
+	for (int i=tasks.length; i<threads.length; i++) {
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			while (Machine.timer().getTime() < end)
+			    spin();
+		    }
+		}).setName("edf best effort " + i);
+	}
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (int i=0; i<tasks.length; i++) {
+	    Lib.assertTrue(scheduler.setRealTime(threads[i], tasks[i][0],
+						 tasks[i][1], tasks[i][0]));
+	}
+
+	// 0.2 + 0.3 + 0.1 + 0.5 is too much
+	KThread rejected = new KThread().setName("edf rejected");
+	Lib.assertTrue(!scheduler.setRealTime(rejected, 2000, 1000, 2000));
+
+	Machine.interrupt().restore(intStatus);
+
+	for (int i=0; i<threads.length; i++)
+	    threads[i].fork();
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+
+	Lib.assertTrue(misses[0] == 0 && misses[1] == 0 && misses[2] > 0);
+
+	// the finished threads gave their reservations back
+	intStatus = Machine.interrupt().disable();
+	Lib.assertTrue(scheduler.realTime.isEmpty());
+	Lib.assertTrue(scheduler.setRealTime(rejected, 2000, 1000, 2000));
+	scheduler.clearRealTime(rejected);
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * A real-time thread takes a lock that a best-effort thread is waiting
+     * for, and donating to the holder. The donation moves from the old
+     * holder to the real-time thread, and back to nobody when the
+     * best-effort thread gets the lock. Uses a priority scheduler for the
+     * best-effort threads, and then repeats the inheritance test with it.
+     */
+    private static void handOffTest() {
+	// threads already carry the state of another kind of scheduler
+	Object state = new KThread().schedulingState;
+	if (state != null && !(state instanceof PriorityScheduler.ThreadState))
+	    return;
+
+	EDFScheduler scheduler = new EDFScheduler(new PriorityScheduler(), 1.0);
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread holder = new KThread().setName("edf holder");
+	KThread waiter = new KThread().setName("edf waiter");
+	KThread realTime = new KThread().setName("edf real-time");
+	scheduler.setPriority(holder, PriorityScheduler.priorityMinimum);
+	scheduler.setPriority(waiter, PriorityScheduler.priorityMaximum);
+	scheduler.setPriority(realTime, PriorityScheduler.priorityMinimum);
+	Lib.assertTrue(scheduler.setRealTime(realTime, 10000, 1000, 10000));
+
+	ThreadQueue lock = scheduler.newThreadQueue(true);
+	lock.acquire(holder);
+	lock.waitForAccess(waiter);
+	lock.waitForAccess(realTime);
+	Lib.assertTrue(scheduler.getEffectivePriority(holder) ==
+		       PriorityScheduler.priorityMaximum);
+
+	Lib.assertTrue(lock.nextThread() == realTime);
+	Lib.assertTrue(scheduler.getEffectivePriority(holder) ==
+		       PriorityScheduler.priorityMinimum);
+	Lib.assertTrue(scheduler.getEffectivePriority(realTime) ==
+		       PriorityScheduler.priorityMaximum);
+
+	Lib.assertTrue(lock.nextThread() == waiter);
+	Lib.assertTrue(scheduler.getEffectivePriority(realTime) ==
+		       PriorityScheduler.priorityMinimum);
+	Lib.assertTrue(lock.nextThread() == null);
+
+	scheduler.clearRealTime(realTime);
+	Machine.interrupt().restore(intStatus);
+
+	inheritanceTest(new PriorityScheduler());
+    }
+
+    /**
+     * A best-effort thread holds a lock that a real-time thread comes to
+     * wait for, while it waits for a second lock held by another best-effort
+     * thread that is ready. Both holders inherit the deadline, and come
+     * before the best-effort threads and a real-time thread with a later
+     * deadline in the queues they wait in, until they give the locks up.
+     *
+     * @param	bestEffort	the scheduler for the best-effort threads.
+     */
+    private static void inheritanceTest(Scheduler bestEffort) {
+	EDFScheduler scheduler = new EDFScheduler(bestEffort, 1.0);
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread holder = new KThread().setName("edf inheriting holder");
+	KThread outer = new KThread().setName("edf outer holder");
+	KThread lockWaiter = new KThread().setName("edf lock waiter");
+	KThread readyWaiter = new KThread().setName("edf ready waiter");
+	KThread early = new KThread().setName("edf early");
+	KThread late = new KThread().setName("edf late");
+	Lib.assertTrue(scheduler.setRealTime(early, 10000, 1000, 5000));
+	Lib.assertTrue(scheduler.setRealTime(late, 10000, 1000, 10000));
+	long deadline = scheduler.getDeadline(early);
+
+	ThreadQueue ready = scheduler.newThreadQueue(false);
+	ThreadQueue lock = scheduler.newThreadQueue(true);
+	ThreadQueue outerLock = scheduler.newThreadQueue(true);
+
+	lock.acquire(holder);
+	outerLock.acquire(outer);
+	outerLock.waitForAccess(lockWaiter);
+	outerLock.waitForAccess(holder);
+	ready.waitForAccess(late);
+	ready.waitForAccess(readyWaiter);
+	ready.waitForAccess(outer);
+	Lib.assertTrue(scheduler.getDeadline(holder) == Long.MAX_VALUE);
+
+	lock.waitForAccess(early);
+	Lib.assertTrue(scheduler.getDeadline(holder) == deadline);
+	Lib.assertTrue(scheduler.getDeadline(outer) == deadline);
+
+	Lib.assertTrue(ready.nextThread() == outer);
+	Lib.assertTrue(outerLock.nextThread() == holder);
+	Lib.assertTrue(scheduler.getDeadline(outer) == Long.MAX_VALUE);
+	Lib.assertTrue(scheduler.getDeadline(holder) == deadline);
+
+	Lib.assertTrue(lock.nextThread() == early);
+	Lib.assertTrue(scheduler.getDeadline(holder) == Long.MAX_VALUE);
+
+	Lib.assertTrue(ready.nextThread() == late);
+	Lib.assertTrue(ready.nextThread() == readyWaiter);
+	Lib.assertTrue(ready.nextThread() == null);
+	Lib.assertTrue(lock.nextThread() == null);
+	Lib.assertTrue(outerLock.nextThread() == lockWaiter);
+	Lib.assertTrue(outerLock.nextThread() == null);
+
+	scheduler.clearRealTime(early);
+	scheduler.clearRealTime(late);
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private static void spin() {
+	Machine.interrupt().disable();
+	Machine.interrupt().enable();
+    }
+
+    private Scheduler bestEffort;
+    private double utilizationBound;
+
+    /** The real-time threads. */
+    private HashMap<KThread, RealTimeState> realTime =
+	new HashMap<KThread, RealTimeState>();
+    /** The queues each thread waits for and holds. */
+    private HashMap<KThread, QueueState> queueStates =
+	new HashMap<KThread, QueueState>();
+    /** The earliest deadline of a real-time thread made ready since the
+     * last timer interrupt. */
+    private long readyDeadline = Long.MAX_VALUE;
+}
@@ -0,0 +1,357 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.TreeSet;
+
+/**
+ * A scheduler that divides the CPU fairly among threads by weighted virtual
+ * runtime, like the Linux completely fair scheduler.
+ *
+ * <p>
+ * A fair scheduler gives each thread a weight, set through its priority. A
+ * thread's <i>virtual runtime</i> advances by the ticks it runs divided by
+ * its weight, and the next thread to be dequeued is always the one with the
+ * least virtual runtime, first come first served among equals. Waiting
+ * threads are kept in a red-black tree, so dispatch takes O(log n).
+ *
+ * <p>
+ * Priorities run from 1 to 40, and correspond to Unix nice values from 19
+ * down to -20. The default priority, 20, is nice 0. Each step of priority
+ * is worth about 25% more CPU time.
+ *
+ * <p>
+ * A thread that wakes up after sleeping or blocking keeps the virtual
+ * runtime it had, but no less than slightly below the least virtual runtime
+ * in the queue it joins. It is then chosen soon, without being able to
+ * monopolize the CPU for the time it was away. A new thread starts at the
+ * least virtual runtime.
+ *
+ * <p>
+ * Like a round-robin scheduler, a fair scheduler does not transfer priority.
+ * A thread holding a lock is never starved, since its virtual runtime falls
+ * behind while others run.
+ */
+public class FairScheduler extends Scheduler {
+    /**
+     * Allocate a new fair scheduler.
+     */
+    public FairScheduler() {
+    }
+
+    /**
+     * Allocate a new fair thread queue.
+     *
+     * @param	transferPriority	ignored. Fair thread queues do not
+     *					transfer priority.
+     * @return	a new fair thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FairQueue();
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).priority;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		       priority <= priorityMaximum);
+
+	getThreadState(thread).priority = priority;
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != priorityMaximum);
+	if (changed)
+	    setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != priorityMinimum);
+	if (changed)
+	    setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * The default priority for a new thread, equivalent to nice 0.
+     */
+    public static final int priorityDefault = 20;
+    /**
+     * The minimum priority that a thread can have, equivalent to nice 19.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum priority that a thread can have, equivalent to nice -20.
+     */
+    public static final int priorityMaximum = 40;
+
+    /**
+     * The weight of each priority, from <tt>priorityMaximum</tt> down. These
+     * are the weights Linux gives nice values -20 to 19.
+     */
+    private static final int[] weights = {
+	88761, 71755, 56483, 46273, 36291,
+	29154, 23254, 18705, 14949, 11916,
+	 9548,  7620,  6100,  4904,  3906,
+	 3121,  2501,  1991,  1586,  1277,
+	 1024,   820,   655,   526,   423,
+	  335,   272,   215,   172,   137,
+	  110,    87,    70,    56,    45,
+	   36,    29,    23,    18,    15,
+    };
+
+    /**
+     * The virtual runtime of one tick at weight 1.
+     */
+    private static final long vruntimeScale = 1 << 20;
+
+    /**
+     * How far below the least virtual runtime in a queue a waking thread can
+     * be placed: one timer interrupt at the default priority.
+     */
+    private static final long sleeperCredit =
+	Stats.TimerTicks * vruntimeScale / getWeight(priorityDefault);
+
+    /**
+     * Return the weight of a priority.
+     *
+     * @param	priority	a priority.
+     * @return	the weight of that priority.
+     */
+    private static int getWeight(int priority) {
+	return weights[priorityMaximum-priority];
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that dequeues the waiting thread with the least
+     * virtual runtime.
+     */
+    protected class FairQueue extends ThreadQueue {
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    state.charge();
+
+	    // only a thread being woken up or forked is not the current thread
+	    if (thread != KThread.currentThread())
+		state.place(minVruntime);
+
+	    state.waitSequence = numWaits++;
+	    waitQueue.add(state);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    Lib.assertTrue(waitQueue.isEmpty());
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = waitQueue.pollFirst();
+	    if (state == null)
+		return null;
+
+	    minVruntime = Math.max(minVruntime, state.vruntime);
+	    return state.thread;
+	}
+
+	/**
+	 * Return the next thread that <tt>nextThread()</tt> would return,
+	 * without modifying the state of this queue.
+	 *
+	 * @return	the next thread that <tt>nextThread()</tt> would
+	 *		return.
+	 */
+	protected KThread pickNextThread() {
+	    return waitQueue.isEmpty() ? null : waitQueue.first().thread;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (ThreadState state : waitQueue)
+		System.out.print(state.thread + "(" + state.vruntime + ") ");
+	}
+
+	/** The waiting threads, ordered by virtual runtime. */
+	private TreeSet<ThreadState> waitQueue = new TreeSet<ThreadState>();
+	/** The number of threads that have ever waited on this queue. */
+	private long numWaits = 0;
+	/** The virtual runtime of the thread most recently dequeued, or of
+	 * any dequeued before it, whichever is greater. */
+	private long minVruntime = 0;
+    }
+
+    /**
+     * The scheduling state of a thread under a fair scheduler: its priority
+     * and its virtual runtime.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState implements Comparable<ThreadState> {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	    this.chargedTicks = thread.getRunTicks();
+	}
+
+	/**
+	 * Charge the associated thread for the ticks it has run since it was
+	 * last charged, at its current weight.
+	 */
+	void charge() {
+	    long runTicks = thread.getRunTicks();
+	    vruntime += (runTicks - chargedTicks) * vruntimeScale /
+		getWeight(priority);
+	    chargedTicks = runTicks;
+	}
+
+	/**
+	 * Place the associated thread, which is waking up or starting, in a
+	 * queue with the specified least virtual runtime.
+	 *
+	 * @param	minVruntime	the least virtual runtime of the queue.
+	 */
+	void place(long minVruntime) {
+	    if (!placed) {
+		placed = true;
+		vruntime = minVruntime;
+	    }
+	    else {
+		vruntime = Math.max(vruntime, minVruntime - sleeperCredit);
+	    }
+	}
+
+	public int compareTo(ThreadState state) {
+	    if (vruntime != state.vruntime)
+		return (vruntime < state.vruntime) ? -1 : 1;
+	    else if (waitSequence != state.waitSequence)
+		return (waitSequence < state.waitSequence) ? -1 : 1;
+	    else
+		return 0;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The priority of the associated thread. */
+	protected int priority = priorityDefault;
+	/** The virtual runtime of the associated thread. */
+	protected long vruntime = 0;
+
+	/** The order in which this thread started waiting on its queue. */
+	long waitSequence;
+	/** The run time of the thread when it was last charged. */
+	private long chargedTicks;
+	/** <tt>false</tt> until the thread is first placed in a queue. */
+	private boolean placed = false;
+    }
+
+    /**
+     * Test that threads spinning for the CPU run for times in proportion to
+     * their weights, and that a thread that mostly sleeps gets the CPU soon
+     * after it wakes up. Only runs if this is the scheduler in use.
+     */
+    public static void selfTest() {
+	if (!(ThreadedKernel.scheduler instanceof FairScheduler))
+	    return;
+
+	final long end = Machine.timer().getTime() + 200000;
+	final int[] priorities = { priorityDefault, priorityDefault+5,
+				   priorityDefault+10 };
+	final long[] latency = new long[1];
+	final int sleeps = 100;
+	KThread[] threads = new KThread[priorities.length];
+
+	for (int i=0; i<threads.length; i++) {
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			while (Machine.timer().getTime() < end) {
+			    Machine.interrupt().disable();
+			    Machine.interrupt().enable();
+			}
+		    }
+		}).setName("fair " + i);
+
+	    boolean intStatus = Machine.interrupt().disable();
+	    ThreadedKernel.scheduler.setPriority(threads[i], priorities[i]);
+	    Machine.interrupt().restore(intStatus);
+
+	    threads[i].fork();
+	}
+
+	KThread sleeper = new KThread(new Runnable() {
+		public void run() {
+		    for (int i=0; i<sleeps; i++) {
+			long wake = Machine.timer().getTime() + 1000;
+			ThreadedKernel.alarm.waitUntil(1000);
+			latency[0] += Machine.timer().getTime() - wake;
+		    }
+		}
+	    });
+	sleeper.setName("fair sleeper").fork();
+
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+	sleeper.join();
+
+	long total = 0, weight = 0;
+	for (int i=0; i<threads.length; i++) {
+	    total += threads[i].getRunTicks();
+	    weight += getWeight(priorities[i]);
+	}
+
+	for (int i=0; i<threads.length; i++) {
+	    double expected = (double) total * getWeight(priorities[i]) / weight;
+	    Lib.assertTrue(Math.abs(threads[i].getRunTicks() - expected) <
+			   expected / 10);
+	}
+
+	Lib.assertTrue(latency[0] / sleeps < Stats.TimerTicks);
+    }
+}
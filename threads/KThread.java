@@ -2,6 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.ArrayList;
+
 /**
  * A KThread is a thread that can be used to execute Nachos kernel code. Nachos
  * allows multiple threads to run concurrently.
@@ -48,6 +50,15 @@ public class KThread {
         joinQueue.acquire(this);
         Machine.interrupt().restore(intStatus);
 
+	if (allThreads != null)
+	    allThreads.add(this);
+
+	if (traceLatency) {
+	    readyLatency = new LatencyHistogram();
+	    runLengths = new LatencyHistogram();
+	    lockWaits = new LatencyHistogram();
+	}
+
 	if (currentThread != null) {
 	    tcb = new TCB();
 	}	    
@@ -193,6 +204,7 @@ public class KThread {
 	Machine.interrupt().disable();
 
 	Machine.autoGrader().finishingCurrentThread();
+	ThreadedKernel.scheduler.threadFinished(currentThread);
 
 	Lib.assertTrue(toBeDestroyed == null);
 	toBeDestroyed = currentThread;
@@ -202,6 +214,7 @@ public class KThread {
 		thread.ready();
 	}
 
+	currentThread.account();
 	currentThread.status = statusFinished;
 	
 	sleep();
@@ -253,8 +266,10 @@ public class KThread {
 	
 	Lib.assertTrue(Machine.interrupt().disabled());
 
-	if (currentThread.status != statusFinished)
+	if (currentThread.status != statusFinished) {
+	    currentThread.account();
 	    currentThread.status = statusBlocked;
+	}
 
 	runNextThread();
     }
@@ -269,13 +284,30 @@ public class KThread {
 	Lib.assertTrue(Machine.interrupt().disabled());
 	Lib.assertTrue(status != statusReady);
 	
+	account();
 	status = statusReady;
-	if (this != idleThread)
+	if (this != idleThread) {
 	    readyQueue.waitForAccess(this);
+
+	    // a yielding thread does not need to be preempted
+	    if (numReadyThreads++ == 0 && this != currentThread &&
+		ThreadedKernel.alarm != null)
+		ThreadedKernel.alarm.threadReady();
+	}
 	
 	Machine.autoGrader().readyThread(this);
     }
 
+    /**
+     * Return the number of threads waiting to run, not counting the current
+     * thread or the idle thread.
+     *
+     * @return	the number of ready threads.
+     */
+    static int getNumReadyThreads() {
+	return numReadyThreads;
+    }
+
     /**
      * Waits for this thread to finish. If this thread is already finished,
      * return immediately. This method must only be called once; the second
@@ -309,7 +341,15 @@ public class KThread {
 	Lib.assertTrue(idleThread == null);
 	
 	idleThread = new KThread(new Runnable() {
-	    public void run() { while (true) yield(); }
+	    public void run() {
+		while (true) {
+		    // only an interrupt handler can make a thread ready
+		    if (numReadyThreads == 0)
+			Machine.interrupt().idle();
+		    
+		    yield();
+		}
+	    }
 	});
 	idleThread.setName("idle");
 
@@ -326,6 +366,8 @@ public class KThread {
 	KThread nextThread = readyQueue.nextThread();
 	if (nextThread == null)
 	    nextThread = idleThread;
+	else
+	    numReadyThreads--;
 
 	nextThread.run();
     }
@@ -360,6 +402,14 @@ public class KThread {
 	Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
 		  + " to: " + toString());
 
+	// a thread that is still ready to run did not give up the CPU itself
+	if (this != currentThread) {
+	    if (currentThread.status == statusReady)
+		currentThread.involuntarySwitches++;
+	    else
+		currentThread.voluntarySwitches++;
+	}
+
 	currentThread = this;
 
 	tcb.contextSwitch();
@@ -380,8 +430,17 @@ public class KThread {
 
 	Machine.autoGrader().runningThread(this);
 	
+	account();
 	status = statusRunning;
 
+	if (allThreads != null) {
+	    Scheduler scheduler = ThreadedKernel.scheduler;
+	    donated = (scheduler.getEffectivePriority(this) >
+		       scheduler.getPriority(this));
+	    if (donated)
+		donatedRuns++;
+	}
+
 	if (toBeDestroyed != null) {
 	    toBeDestroyed.tcb.destroy();
 	    toBeDestroyed.tcb = null;
@@ -389,6 +448,211 @@ public class KThread {
 	}
     }
 
+    /**
+     * Charge the time since this thread last changed state to the state it is
+     * leaving. Called just before <tt>status</tt> changes.
+     */
+    private void account() {
+	long time = Machine.timer().getTime();
+	long elapsed = time - stateTime;
+	stateTime = time;
+
+	switch (status) {
+	case statusRunning:
+	    runTicks += elapsed;
+	    if (donated)
+		donatedTicks += elapsed;
+	    if (runLengths != null)
+		runLengths.record(elapsed);
+	    break;
+	case statusReady:
+	    readyTicks += elapsed;
+	    if (readyLatency != null)
+		readyLatency.record(elapsed);
+	    break;
+	case statusBlocked:
+	    blockedTicks += elapsed;
+	    break;
+	}
+    }
+
+    /**
+     * Return the number of ticks this thread has spent running, including
+     * time spent running user code and handling interrupts, and the time
+     * since it was last dispatched if it is running now.
+     *
+     * @return	the number of ticks this thread has run.
+     */
+    public long getRunTicks() {
+	if (status == statusRunning)
+	    return runTicks + (Machine.timer().getTime() - stateTime);
+	else
+	    return runTicks;
+    }
+
+    /**
+     * Return the number of ticks this thread has spent on the ready queue,
+     * waiting to run.
+     *
+     * @return	the number of ticks this thread has been ready.
+     */
+    public long getReadyTicks() {
+	return readyTicks;
+    }
+
+    /**
+     * Return the number of ticks this thread has spent blocked, for example
+     * on a semaphore, a join, or the alarm.
+     *
+     * @return	the number of ticks this thread has been blocked.
+     */
+    public long getBlockedTicks() {
+	return blockedTicks;
+    }
+
+    /**
+     * Return the number of times this thread gave up the CPU because it
+     * blocked or finished.
+     *
+     * @return	the number of voluntary context switches.
+     */
+    public int getVoluntarySwitches() {
+	return voluntarySwitches;
+    }
+
+    /**
+     * Return the number of times this thread gave up the CPU while still
+     * ready to run, because it was preempted or called <tt>yield()</tt>.
+     *
+     * @return	the number of involuntary context switches.
+     */
+    public int getInvoluntarySwitches() {
+	return involuntarySwitches;
+    }
+
+    /**
+     * Return the number of times this thread was dispatched with an
+     * effective priority above its own priority. Only counted while thread
+     * statistics are being recorded.
+     *
+     * @return	the number of runs with a donated priority.
+     */
+    public int getDonatedRuns() {
+	return donatedRuns;
+    }
+
+    /**
+     * Return the number of ticks this thread ran with an effective priority
+     * above its own priority. Only counted while thread statistics are being
+     * recorded.
+     *
+     * @return	the number of ticks run with a donated priority.
+     */
+    public long getDonatedTicks() {
+	return donatedTicks;
+    }
+
+    /**
+     * Remember every thread created from now on, so that
+     * <tt>printStats()</tt> can report on threads that have already finished,
+     * and count donated runs. Must be called before the first
+     * <tt>KThread</tt> is created.
+     */
+    static void recordStats() {
+	Lib.assertTrue(currentThread == null);
+	if (allThreads == null)
+	    allThreads = new ArrayList<KThread>();
+    }
+
+    /**
+     * Keep histograms of the ready-to-run latency, run lengths, and lock wait
+     * times of every thread created from now on, for
+     * <tt>printLatency()</tt>. Must be called before the first
+     * <tt>KThread</tt> is created.
+     */
+    static void recordLatency() {
+	recordStats();
+	traceLatency = true;
+    }
+
+    /**
+     * Record the time the current thread waited to acquire a lock, if
+     * latencies are being recorded.
+     *
+     * @param	ticks	the time it waited, which is 0 if the lock was free.
+     */
+    static void recordLockWait(long ticks) {
+	if (currentThread.lockWaits != null)
+	    currentThread.lockWaits.record(ticks);
+    }
+
+    /**
+     * Print the accounting of every thread forked since
+     * <tt>recordStats()</tt> was called.
+     */
+    public static void printStats() {
+	if (allThreads == null)
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	// bring the current thread's time up to date
+	currentThread.account();
+
+	for (KThread thread : allThreads) {
+	    if (thread.status == statusNew)
+		continue;
+
+	    System.out.println("Thread " + thread + ": run " + thread.runTicks
+			       + ", ready " + thread.readyTicks
+			       + ", blocked " + thread.blockedTicks
+			       + ", switches " + thread.voluntarySwitches
+			       + "/" + thread.involuntarySwitches
+			       + ", donated " + thread.donatedRuns + " runs "
+			       + thread.donatedTicks + " ticks");
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Print the percentiles of the ready-to-run latency, run lengths, and lock
+     * wait times of every thread forked since <tt>recordLatency()</tt> was
+     * called, and of all of them together.
+     */
+    public static void printLatency() {
+	if (!traceLatency)
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	LatencyHistogram ready = new LatencyHistogram();
+	LatencyHistogram run = new LatencyHistogram();
+	LatencyHistogram lock = new LatencyHistogram();
+
+	for (KThread thread : allThreads) {
+	    if (thread.status == statusNew)
+		continue;
+
+	    System.out.println("Thread " + thread + ": ready "
+			       + thread.readyLatency + "; run "
+			       + thread.runLengths + "; lock wait "
+			       + thread.lockWaits);
+
+	    // the idle thread only runs when no other thread is waiting
+	    if (thread != idleThread) {
+		ready.add(thread.readyLatency);
+		run.add(thread.runLengths);
+		lock.add(thread.lockWaits);
+	    }
+	}
+
+	System.out.println("All threads: ready " + ready + "; run " + run
+			   + "; lock wait " + lock);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
     /**
      * Prepare this thread to give up the processor. Kernel threads do not
      * need to do anything here.
@@ -610,11 +874,113 @@ public class KThread {
 		game.selfTest();
 	}
 
+    /**
+     * Fork several threads that yield to each other, and join them all.
+     */
+    private static void joinTest() {
+	final int[] loops = new int[4];
+	KThread[] threads = new KThread[loops.length];
+
+	for (int i=0; i<threads.length; i++) {
+	    final int index = i;
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<10; j++) {
+			    loops[index]++;
+			    KThread.yield();
+			}
+		    }
+		}).setName("join test " + i);
+	    threads[i].fork();
+	}
+
+	for (int i=0; i<threads.length; i++) {
+	    threads[i].join();
+	    Lib.assertTrue(loops[i] == 10);
+	}
+    }
+
+    /**
+     * Fork and join more threads than <tt>TCB.poolSize</tt> keeps, several
+     * times over, so that most of them run on JVM threads left by earlier
+     * ones. Each must run once, as itself, on its own TCB.
+     */
+    private static void reuseTest() {
+	final int[] runs = new int[2*TCB.getPoolSize() + 1];
+	final KThread[] threads = new KThread[runs.length];
+
+	for (int wave=0; wave<3; wave++) {
+	    for (int i=0; i<threads.length; i++) {
+		final int index = i;
+		threads[i] = new KThread(new Runnable() {
+			public void run() {
+			    KThread thread = KThread.currentThread();
+			    Lib.assertTrue(thread == threads[index]);
+			    Lib.assertTrue(thread.tcb == TCB.currentTCB());
+			    Lib.assertTrue(thread.status == statusRunning);
+
+			    runs[index]++;
+			    KThread.yield();
+			    Lib.assertTrue(KThread.currentThread() == thread);
+			}
+		    }).setName("reuse test " + i);
+		threads[i].fork();
+	    }
+
+	    for (int i=0; i<threads.length; i++) {
+		threads[i].join();
+		Lib.assertTrue(runs[i] == wave+1);
+		Lib.assertTrue(threads[i].status == statusFinished);
+		Lib.assertTrue(threads[i].tcb == null);
+	    }
+	}
+    }
+
+    /**
+     * Check that a running thread's run, ready and blocked ticks keep up with
+     * the clock while it spins, yields and sleeps, without waiting for it to
+     * be switched out.
+     */
+    private static void accountingTest() {
+	KThread thread = new KThread(new Runnable() {
+		public void run() {
+		    KThread thread = KThread.currentThread();
+
+		    boolean intStatus = Machine.interrupt().disable();
+		    long start = Machine.timer().getTime();
+		    long accounted = thread.getAccountedTicks();
+		    Machine.interrupt().restore(intStatus);
+
+		    for (int i=0; i<100; i++) {
+			if (i == 50)
+			    KThread.yield();
+			if (i == 75)
+			    ThreadedKernel.alarm.waitUntil(1000);
+
+			intStatus = Machine.interrupt().disable();
+			Lib.assertTrue(thread.getAccountedTicks() - accounted ==
+				       Machine.timer().getTime() - start);
+			Machine.interrupt().restore(intStatus);
+		    }
+		}
+	    }).setName("accounting test");
+
+	thread.fork();
+	thread.join();
+    }
+
+    private long getAccountedTicks() {
+	return getRunTicks() + getReadyTicks() + getBlockedTicks();
+    }
+
     /**
      * Tests whether this module is working.
      */
     public static void selfTest() {
 		Lib.debug(dbgThread, "Enter KThread.selfTest");
+		joinTest();
+		reuseTest();
+		accountingTest();
 		// testProblem1();
 		// testProblem2();
 		// testProblem3();
@@ -648,6 +1014,17 @@ public class KThread {
     private Runnable target;
     private TCB tcb;
 
+    /** The time <tt>status</tt> last changed. */
+    private long stateTime = Machine.timer().getTime();
+    private long runTicks = 0, readyTicks = 0, blockedTicks = 0;
+    private int voluntarySwitches = 0, involuntarySwitches = 0;
+    /** <tt>true</tt> if this thread is running with a donated priority. */
+    private boolean donated = false;
+    private int donatedRuns = 0;
+    private long donatedTicks = 0;
+    /** Histograms of this thread's latencies, if they are being recorded. */
+    private LatencyHistogram readyLatency, runLengths, lockWaits;
+
     /**
      * Unique identifer for this thread. Used to deterministically compare
      * threads.
@@ -657,8 +1034,14 @@ public class KThread {
     private static int numCreated = 0;
 
     private static ThreadQueue readyQueue = null;
+    /** The number of threads on the ready queue. */
+    private static int numReadyThreads = 0;
     private ThreadQueue joinQueue = null;
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
     private static KThread idleThread = null;
+    /** Every thread created, if statistics are being recorded. */
+    private static ArrayList<KThread> allThreads = null;
+    /** <tt>true</tt> if latency histograms are being recorded. */
+    private static boolean traceLatency = false;
 }
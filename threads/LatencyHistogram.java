@@ -0,0 +1,142 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A histogram of times, in ticks, that reports percentiles.
+ *
+ * <p>
+ * Like an HDR histogram, it divides each power of two into the same number
+ * of buckets, so any recorded time is known to within about 6%, and small
+ * times exactly, with a fixed number of buckets covering every
+ * non-negative <tt>long</tt>. Recording a time only increments a counter, and
+ * never allocates memory, so it can be done on every context switch.
+ */
+public class LatencyHistogram {
+    /**
+     * Allocate a new, empty histogram.
+     */
+    public LatencyHistogram() {
+    }
+
+    /**
+     * Record a time.
+     *
+     * @param	ticks	the time to record, which must not be negative.
+     */
+    public void record(long ticks) {
+	Lib.assertTrue(ticks >= 0);
+
+	counts[getBucket(ticks)]++;
+	count++;
+	max = Math.max(max, ticks);
+    }
+
+    /**
+     * Add every time recorded by another histogram to this one.
+     *
+     * @param	histogram	the other histogram.
+     */
+    public void add(LatencyHistogram histogram) {
+	for (int i=0; i<counts.length; i++)
+	    counts[i] += histogram.counts[i];
+
+	count += histogram.count;
+	max = Math.max(max, histogram.max);
+    }
+
+    /**
+     * Return the number of times recorded.
+     *
+     * @return	the number of times recorded.
+     */
+    public long getCount() {
+	return count;
+    }
+
+    /**
+     * Return the longest time recorded.
+     *
+     * @return	the longest time recorded, or 0 if none has been.
+     */
+    public long getMax() {
+	return max;
+    }
+
+    /**
+     * Return a time that the specified fraction of the recorded times do not
+     * exceed. The time returned is the greatest time in its bucket, but never
+     * more than the longest time recorded.
+     *
+     * @param	fraction	a fraction between 0 and 1, for example 0.99 for
+     *				the 99th percentile.
+     * @return	the percentile, or 0 if no time has been recorded.
+     */
+    public long getPercentile(double fraction) {
+	Lib.assertTrue(fraction >= 0 && fraction <= 1);
+
+	if (count == 0)
+	    return 0;
+
+	long rank = Math.max((long) Math.ceil(fraction * count), 1);
+
+	long seen = 0;
+	for (int i=0; i<counts.length; i++) {
+	    seen += counts[i];
+	    if (seen >= rank)
+		return Math.min(getHighestTime(i), max);
+	}
+
+	return max;
+    }
+
+    /**
+     * Return the number of times recorded, their 50th and 99th percentiles,
+     * and the longest, for printing.
+     *
+     * @return	a summary of this histogram.
+     */
+    public String toString() {
+	return count + " times, p50 " + getPercentile(0.50) + ", p99 " +
+	    getPercentile(0.99) + ", max " + max;
+    }
+
+    /**
+     * Return the bucket a time is counted in. Times below
+     * <tt>subBuckets</tt> have a bucket each. Above that, the bucket is given
+     * by the position of the highest bit set and the <tt>subBits</tt> bits
+     * below it.
+     */
+    private static int getBucket(long ticks) {
+	if (ticks < subBuckets)
+	    return (int) ticks;
+
+	int highestBit = 63 - Long.numberOfLeadingZeros(ticks);
+	int shift = highestBit - subBits;
+	int subBucket = (int) (ticks >>> shift) - subBuckets;
+
+	return (shift+1) * subBuckets + subBucket;
+    }
+
+    /**
+     * Return the greatest time counted in a bucket.
+     */
+    private static long getHighestTime(int bucket) {
+	if (bucket < subBuckets)
+	    return bucket;
+
+	int shift = bucket / subBuckets - 1;
+	long lowest = (long) (bucket % subBuckets + subBuckets) << shift;
+
+	return lowest + (1L << shift) - 1;
+    }
+
+    /** The number of bits of each time kept by its bucket. */
+    private static final int subBits = 4;
+    /** The number of buckets each power of two is divided into. */
+    private static final int subBuckets = 1 << subBits;
+
+    private int[] counts = new int[(64-subBits) * subBuckets];
+    private long count = 0;
+    private long max = 0;
+}
@@ -37,12 +37,15 @@ public class Lock {
 	KThread thread = KThread.currentThread();
 
 	if (lockHolder != null) {
+	    long waitTime = Machine.timer().getTime();
 	    waitQueue.waitForAccess(thread);
 	    KThread.sleep();
+	    KThread.recordLockWait(Machine.timer().getTime() - waitTime);
 	}
 	else {
 	    waitQueue.acquire(thread);
 	    lockHolder = thread;
+	    KThread.recordLockWait(0);
 	}
 
 	Lib.assertTrue(lockHolder == thread);
@@ -73,6 +76,37 @@ public class Lock {
 	return (lockHolder == KThread.currentThread());
     }
 
+    /**
+     * Test that threads that yield while holding a lock still update a shared
+     * counter one at a time.
+     */
+    public static void selfTest() {
+	final Lock lock = new Lock();
+	final int[] counter = new int[1];
+	KThread[] threads = new KThread[4];
+
+	for (int i=0; i<threads.length; i++) {
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<10; j++) {
+			    lock.acquire();
+			    int value = counter[0];
+			    KThread.yield();
+			    counter[0] = value + 1;
+			    lock.release();
+			}
+		    }
+		}).setName("lock test " + i);
+	    threads[i].fork();
+	}
+
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+
+	Lib.assertTrue(counter[0] == threads.length * 10);
+	Lib.assertTrue(!lock.isHeldByCurrentThread());
+    }
+
     private KThread lockHolder = null;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(true);
@@ -2,9 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Random;
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -25,14 +24,32 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking
  * the maximum).
+ *
+ * <p>
+ * Each queue keeps the tickets of its waiting threads in a Fenwick tree, so
+ * drawing a winner, adding or removing a thread, and changing a thread's
+ * tickets all take O(log n). Ticket counts are summed as <tt>long</tt>s, and
+ * an effective ticket count too large for an <tt>int</tt> is reported as
+ * <tt>Integer.MAX_VALUE</tt>.
  */
 public class LotteryScheduler extends PriorityScheduler {
     /**
      * Allocate a new lottery scheduler.
      */
     public LotteryScheduler() {
+	this(null);
     }
-    
+
+    /**
+     * Allocate a new lottery scheduler that draws from the specified random
+     * number generator, rather than from <tt>Lib.random()</tt>.
+     *
+     * @param	random	the random number generator, or <tt>null</tt>.
+     */
+    LotteryScheduler(Random random) {
+	this.random = random;
+    }
+
     /**
      * Allocate a new lottery thread queue.
      *
@@ -42,7 +59,488 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-	return null;
+	return new LotteryQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getLotteryState(thread).tickets;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return (int) Math.min(getLotteryState(thread).effectiveTickets,
+			      priorityMaximum);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		       priority <= priorityMaximum);
+
+	getLotteryState(thread).setTickets(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != priorityMaximum);
+	if (changed)
+	    setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != priorityMinimum);
+	if (changed)
+	    setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected LotteryState getLotteryState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new LotteryState(thread);
+
+	return (LotteryState) thread.schedulingState;
+    }
+
+    /**
+     * Draw a ticket.
+     *
+     * @param	total	the number of tickets in the lottery.
+     * @return	the winning ticket, between 0 and <i>total - 1</i>.
+     */
+    private long draw(long total) {
+	double r = (random != null) ? random.nextDouble() : Lib.random();
+	return Math.min((long) (r * total), total-1);
+    }
+
+    /**
+     * Add tickets to a thread, and to every thread it is donating to along
+     * the chain of queues it waits on. The chain is followed iteratively, so
+     * that a long one cannot overflow the stack.
+     */
+    private static void addTickets(LotteryState state, long delta) {
+	while (state != null && delta != 0) {
+	    state.effectiveTickets += delta;
+
+	    LotteryQueue queue = state.waitingOn;
+	    if (queue == null)
+		break;
+
+	    queue.tree.add(state.slot, delta);
+	    state = queue.transferPriority ? queue.holder : null;
+	}
+    }
+
+    private final Random random;
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery among the tickets of its
+     * waiting threads.
+     */
+    protected class LotteryQueue extends ThreadQueue {
+	LotteryQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getLotteryState(thread).waitForAccess(this);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getLotteryState(thread).acquire(this);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    LotteryState next = pickNext();
+
+	    // the holder gives up this queue, even if no one is waiting
+	    setHolder(null);
+
+	    if (next == null)
+		return null;
+
+	    next.acquire(this);
+	    return next.thread;
+	}
+
+	/**
+	 * Return the next thread that <tt>nextThread()</tt> would return,
+	 * without modifying the state of this queue. The winning ticket is
+	 * kept until the queue changes, so that <tt>nextThread()</tt> agrees.
+	 *
+	 * @return	the next thread that <tt>nextThread()</tt> would
+	 *		return.
+	 */
+	protected KThread pickNextThread() {
+	    LotteryState next = pickNext();
+	    return (next == null) ? null : next.thread;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<tree.capacity(); i++) {
+		if (tree.states[i] != null) {
+		    System.out.print(tree.states[i].thread + "(" +
+				     tree.states[i].effectiveTickets + ") ");
+		}
+	    }
+	}
+
+	private LotteryState pickNext() {
+	    long total = tree.total();
+	    if (total == 0)
+		return null;
+
+	    if (winner < 0 || tree.changes != winnerChanges) {
+		winner = draw(total);
+		winnerChanges = tree.changes;
+	    }
+
+	    return tree.find(winner);
+	}
+
+	/**
+	 * Give this queue to a new holder, moving its donation along.
+	 *
+	 * @param	state	the new holder, or <tt>null</tt>.
+	 */
+	void setHolder(LotteryState state) {
+	    LotteryState oldHolder = holder;
+	    holder = state;
+
+	    if (transferPriority) {
+		addTickets(oldHolder, -tree.total());
+		addTickets(state, tree.total());
+	    }
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	/** The tickets of the waiting threads. */
+	TicketTree tree = new TicketTree();
+	/** The thread that last acquired this queue, or <tt>null</tt>. */
+	LotteryState holder = null;
+
+	/** The winning ticket of the next lottery, or -1 if not drawn. */
+	private long winner = -1;
+	/** The value of <tt>tree.changes</tt> when the winner was drawn. */
+	private long winnerChanges;
+    }
+
+    /**
+     * A Fenwick tree of the tickets held by the threads waiting on a queue,
+     * with one slot per waiting thread. Slots are reused as threads leave,
+     * and the tree doubles in size when it runs out of them.
+     */
+    private static class TicketTree {
+	int capacity() {
+	    return states.length;
+	}
+
+	long total() {
+	    return total;
+	}
+
+	/**
+	 * Give a thread a slot holding its effective tickets.
+	 */
+	void insert(LotteryState state) {
+	    if (numFree == 0)
+		grow();
+
+	    int slot = free[--numFree];
+	    states[slot] = state;
+	    state.slot = slot;
+	    add(slot, state.effectiveTickets);
+	}
+
+	/**
+	 * Empty a thread's slot.
+	 */
+	void delete(LotteryState state) {
+	    int slot = state.slot;
+	    Lib.assertTrue(states[slot] == state);
+
+	    add(slot, -state.effectiveTickets);
+	    states[slot] = null;
+	    state.slot = -1;
+	    free[numFree++] = slot;
+	}
+
+	/**
+	 * Add tickets to a slot.
+	 */
+	void add(int slot, long delta) {
+	    total += delta;
+	    changes++;
+
+	    for (int i=slot+1; i<=states.length; i+=i&-i)
+		sums[i] += delta;
+	}
+
+	/**
+	 * Return the thread holding the specified ticket, counting the
+	 * tickets of the slots in order.
+	 *
+	 * @param	ticket	a ticket, between 0 and <tt>total() - 1</tt>.
+	 * @return	the thread holding that ticket.
+	 */
+	LotteryState find(long ticket) {
+	    Lib.assertTrue(ticket >= 0 && ticket < total);
+
+	    int index = 0;
+	    for (int step=Integer.highestOneBit(states.length); step>0;
+		 step>>=1) {
+		int next = index + step;
+		if (next <= states.length && sums[next] <= ticket) {
+		    index = next;
+		    ticket -= sums[index];
+		}
+	    }
+
+	    return states[index];
+	}
+
+	private void grow() {
+	    int oldCapacity = states.length;
+	    int capacity = Math.max(oldCapacity*2, 4);
+
+	    states = Arrays.copyOf(states, capacity);
+	    free = new int[capacity];
+	    for (int slot=capacity-1; slot>=oldCapacity; slot--)
+		free[numFree++] = slot;
+
+	    // rebuild the sums in linear time
+	    sums = new long[capacity+1];
+	    for (int i=1; i<=capacity; i++) {
+		if (states[i-1] != null)
+		    sums[i] += states[i-1].effectiveTickets;
+
+		int parent = i + (i&-i);
+		if (parent <= capacity)
+		    sums[parent] += sums[i];
+	    }
+	}
+
+	LotteryState[] states = new LotteryState[0];
+	private long[] sums = new long[1];
+	private int[] free = new int[0];
+	private int numFree = 0;
+	private long total = 0;
+	/** Incremented whenever the tickets in this tree change. */
+	long changes = 0;
+    }
+
+    /**
+     * The scheduling state of a thread under a lottery scheduler: its own
+     * tickets, the tickets donated to it, and the queue it is waiting on.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class LotteryState {
+	/**
+	 * Allocate a new <tt>LotteryState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public LotteryState(KThread thread) {
+	    this.thread = thread;
+
+	    setTickets(priorityDefault);
+	}
+
+	/**
+	 * Set the number of tickets of the associated thread.
+	 *
+	 * @param	tickets	the new number of tickets.
+	 */
+	public void setTickets(int tickets) {
+	    long delta = (long) tickets - this.tickets;
+	    this.tickets = tickets;
+	    addTickets(this, delta);
+	}
+
+	/**
+	 * Called when the associated thread starts waiting on a queue.
+	 *
+	 * @param	waitQueue	the queue that the associated thread is
+	 *				now waiting on.
+	 */
+	public void waitForAccess(LotteryQueue waitQueue) {
+	    Lib.assertTrue(waitingOn == null);
+
+	    // a thread waiting for something it holds has given it up
+	    if (waitQueue.holder == this)
+		waitQueue.setHolder(null);
+
+	    waitingOn = waitQueue;
+	    waitQueue.tree.insert(this);
+
+	    if (waitQueue.transferPriority)
+		addTickets(waitQueue.holder, effectiveTickets);
+	}
+
+	/**
+	 * Called when the associated thread has acquired access to whatever is
+	 * guarded by <tt>waitQueue</tt>.
+	 *
+	 * @param	waitQueue	the queue the thread has acquired.
+	 */
+	public void acquire(LotteryQueue waitQueue) {
+	    if (waitingOn == waitQueue) {
+		waitQueue.tree.delete(this);
+		waitingOn = null;
+
+		if (waitQueue.transferPriority)
+		    addTickets(waitQueue.holder, -effectiveTickets);
+	    }
+
+	    waitQueue.setHolder(this);
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The tickets of the associated thread. */
+	protected int tickets = 0;
+	/** The tickets of the associated thread, including donations. */
+	protected long effectiveTickets = 0;
+
+	/** The queue this thread is waiting on, or <tt>null</tt>. */
+	LotteryQueue waitingOn = null;
+	/** The slot of this thread in its queue's tree, or -1. */
+	int slot = -1;
+    }
+
+    /**
+     * Test that threads win in proportion to their tickets, and that tickets
+     * are donated through long chains of locks.
+     */
+    public static void selfTest() {
+	// threads already carry the state of another kind of scheduler
+	Object state = new KThread().schedulingState;
+	if (state != null && !(state instanceof LotteryState))
+	    return;
+
+	LotteryScheduler scheduler = new LotteryScheduler(new Random(0));
+	boolean intStatus = Machine.interrupt().disable();
+
+	shareTest(scheduler, 100000);
+	chainTest(scheduler, 1000);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Threads holding 1, 2, 3 and 4 million tickets each win about a tenth
+     * as often as their share of the tickets.
+     */
+    private static void shareTest(LotteryScheduler scheduler, int draws) {
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	KThread[] threads = new KThread[4];
+	int[] wins = new int[threads.length];
+
+	for (int i=0; i<threads.length; i++) {
+	    threads[i] = new KThread().setName("share " + i);
+	    scheduler.setPriority(threads[i], (i+1) * 1000000);
+	    queue.waitForAccess(threads[i]);
+	}
+
+	for (int n=0; n<draws; n++) {
+	    KThread next = queue.nextThread();
+	    for (int i=0; i<threads.length; i++) {
+		if (threads[i] == next)
+		    wins[i]++;
+	    }
+	    queue.waitForAccess(next);
+	}
+
+	for (int i=0; i<threads.length; i++) {
+	    double expected = draws * (i+1) / 10.0;
+	    Lib.assertTrue(Math.abs(wins[i] - expected) < expected * 0.05);
+	}
+    }
+
+    /**
+     * Thread <i>i</i> holds lock <i>i</i> and waits for lock <i>i</i>-1, so
+     * thread 0 holds the tickets of all of them.
+     */
+    private static void chainTest(LotteryScheduler scheduler, int length) {
+	KThread[] threads = new KThread[length];
+	ThreadQueue[] locks = new ThreadQueue[length];
+
+	for (int i=0; i<length; i++) {
+	    threads[i] = new KThread().setName("chain " + i);
+	    scheduler.setPriority(threads[i], 1000);
+	    locks[i] = scheduler.newThreadQueue(true);
+	    locks[i].acquire(threads[i]);
+	    if (i > 0)
+		locks[i-1].waitForAccess(threads[i]);
+	}
+
+	for (int i=0; i<length; i++)
+	    Lib.assertTrue(scheduler.getEffectivePriority(threads[i]) ==
+			   (length-i) * 1000);
+
+	scheduler.setPriority(threads[length-1], priorityMaximum);
+	Lib.assertTrue(scheduler.getEffectivePriority(threads[0]) ==
+		       priorityMaximum);
+	Lib.assertTrue(scheduler.getLotteryState(threads[0]).effectiveTickets ==
+		       (length-1) * 1000L + priorityMaximum);
+
+	// releasing a lock in the middle cuts the chain
+	scheduler.setPriority(threads[length-1], 1000);
+	Lib.assertTrue(locks[length/2].nextThread() == threads[length/2+1]);
+	for (int i=0; i<length; i++) {
+	    int expected = (i <= length/2) ? (length/2+1-i) * 1000
+		: (length-i) * 1000;
+	    Lib.assertTrue(scheduler.getEffectivePriority(threads[i]) ==
+			   expected);
+	}
     }
 }
@@ -0,0 +1,296 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A multi-level feedback queue scheduler.
+ *
+ * <p>
+ * A multi-level feedback queue scheduler is a priority scheduler that sets
+ * each thread's priority itself, from how the thread uses the CPU. New
+ * threads start at the highest level. A thread that runs for the whole
+ * quantum of its level without blocking is moved down a level, and a thread
+ * that blocks, for instance waiting for the console, the network or the
+ * file system, is moved up a level. A higher level has a shorter quantum, so
+ * interactive threads run soon after they wake up, while threads that
+ * compute for a long time run less often but for longer.
+ *
+ * <p>
+ * The levels are the top priorities of a <tt>PriorityScheduler</tt>, so
+ * priority is still donated through locks and joins. A thread made ready at
+ * a higher level than the current thread preempts it at the next timer
+ * interrupt, even if its quantum has not run out.
+ *
+ * <p>
+ * To keep threads at the bottom level from starving, every thread is moved
+ * back to the highest level periodically.
+ *
+ * <p>
+ * The quantum of each level is set by <tt>MLFQScheduler.quanta</tt> in
+ * <tt>nachos.conf</tt>, a comma-separated list of timer interrupts from the
+ * highest level down, and the time between boosts, in ticks, by
+ * <tt>MLFQScheduler.boostInterval</tt>.
+ */
+public class MLFQScheduler extends PriorityScheduler {
+    /**
+     * Allocate a new multi-level feedback queue scheduler.
+     */
+    public MLFQScheduler() {
+	String[] values =
+	    Config.getString("MLFQScheduler.quanta", "1,2,4").split(",");
+	Lib.assertTrue(values.length <= priorityMaximum-priorityMinimum+1,
+		       "MLFQScheduler.quanta has too many levels");
+
+	quanta = new int[values.length];
+	for (int i=0; i<quanta.length; i++) {
+	    quanta[i] = Integer.parseInt(values[i].trim());
+	    Lib.assertTrue(quanta[i] > 0,
+			   "MLFQScheduler.quanta must be positive");
+	}
+
+	bottomLevel = priorityMaximum - quanta.length + 1;
+
+	boostInterval = Config.getInteger("MLFQScheduler.boostInterval",
+					  20000);
+	Lib.assertTrue(boostInterval > 0);
+	nextBoost = boostInterval;
+    }
+
+    /**
+     * Allocate a new multi-level feedback thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer priority from waiting threads
+     *					to the owning thread.
+     * @return	a new multi-level feedback thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new MLFQQueue(transferPriority);
+    }
+
+    /**
+     * Count a timer interrupt against the current thread's quantum, and move
+     * it down a level if the quantum has run out.
+     *
+     * @param	thread	the current thread.
+     * @return	<tt>true</tt> if the quantum has run out, or a thread at a
+     *		higher level is waiting to run.
+     */
+    public boolean quantumExpired(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long time = Machine.timer().getTime();
+	if (time >= nextBoost) {
+	    boosts++;
+	    nextBoost = time + boostInterval;
+	}
+
+	MLFQState state = getMLFQState(thread);
+	state.catchUp();
+
+	boolean preempt = (readyPriority > state.getEffectivePriority());
+	readyPriority = -1;
+
+	if (++state.slices >= quanta[state.getLevel()]) {
+	    state.demote();
+	    preempt = true;
+	}
+
+	return preempt;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new MLFQState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    private MLFQState getMLFQState(KThread thread) {
+	return (MLFQState) getThreadState(thread);
+    }
+
+    /**
+     * A priority queue that brings the levels of its waiting threads up to
+     * date after a boost before choosing the next thread.
+     */
+    protected class MLFQQueue extends PriorityQueue {
+	MLFQQueue(boolean transferPriority) {
+	    super(transferPriority);
+	}
+
+	public KThread nextThread() {
+	    boostWaiters();
+	    return super.nextThread();
+	}
+
+	protected KThread pickNextThread() {
+	    boostWaiters();
+	    return super.pickNextThread();
+	}
+
+	private void boostWaiters() {
+	    if (boosted == boosts)
+		return;
+
+	    boosted = boosts;
+
+	    ThreadState[] waiters = getWaiters();
+	    for (int i=0; i<waiters.length; i++)
+		((MLFQState) waiters[i]).catchUp();
+	}
+
+	/** The number of boosts this queue has applied to its waiters. */
+	private int boosted = 0;
+    }
+
+    /**
+     * The scheduling state of a thread under a multi-level feedback queue
+     * scheduler. The thread's level is its priority.
+     */
+    protected class MLFQState extends ThreadState {
+	/**
+	 * Allocate a new <tt>MLFQState</tt> object for the specified thread,
+	 * at the highest level.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public MLFQState(KThread thread) {
+	    super(thread);
+
+	    boosted = boosts;
+	    voluntarySwitches = thread.getVoluntarySwitches();
+	    setPriority(priorityMaximum);
+	}
+
+	/**
+	 * Move the associated thread up a level if it has blocked since it
+	 * last waited on a queue, and note if it is being made ready at a
+	 * higher level than the current thread.
+	 *
+	 * @param	waitQueue	the queue that the associated thread is
+	 *				now waiting on.
+	 */
+	public void waitForAccess(PriorityQueue waitQueue) {
+	    catchUp();
+
+	    int switches = thread.getVoluntarySwitches();
+	    if (switches != voluntarySwitches) {
+		voluntarySwitches = switches;
+		changeLevel(Math.min(priority+1, priorityMaximum));
+	    }
+
+	    super.waitForAccess(waitQueue);
+
+	    // only the ready queue is waited on by a thread other than the
+	    // current one
+	    if (thread != KThread.currentThread())
+		readyPriority = Math.max(readyPriority, effectivePriority);
+	}
+
+	/**
+	 * Apply any boost that has happened since this thread was last
+	 * boosted.
+	 */
+	void catchUp() {
+	    if (boosted != boosts) {
+		boosted = boosts;
+		changeLevel(priorityMaximum);
+	    }
+	}
+
+	/**
+	 * Move this thread down a level, after it has used its whole quantum.
+	 */
+	void demote() {
+	    changeLevel(priority > bottomLevel ? priority-1 : priority);
+	}
+
+	/**
+	 * Return the index in <tt>quanta</tt> of this thread's level.
+	 */
+	int getLevel() {
+	    return Math.max(Math.min(priorityMaximum - priority,
+				     quanta.length-1), 0);
+	}
+
+	private void changeLevel(int level) {
+	    slices = 0;
+	    if (level != priority)
+		setPriority(level);
+	}
+
+	/** The timer interrupts this thread has run for at this level. */
+	int slices = 0;
+	/** The number of boosts applied to this thread. */
+	private int boosted;
+	/** The voluntary context switches of the thread when last checked. */
+	private int voluntarySwitches;
+    }
+
+    /** The quantum of each level, in timer interrupts, highest first. */
+    private int[] quanta;
+    /** The priority of the lowest level. */
+    private int bottomLevel;
+
+    /** The number of ticks between boosts. */
+    private int boostInterval;
+    /** The time of the next boost. */
+    private long nextBoost;
+    /** The number of boosts so far. */
+    private int boosts = 0;
+
+    /** The highest effective priority of a thread made ready since the last
+     * timer interrupt, or -1. */
+    private int readyPriority = -1;
+
+    /**
+     * Test that a thread that sleeps most of the time runs soon after it
+     * wakes up, even while three threads are computing. Under a round-robin
+     * scheduler, it often waits behind them, for more than a timer interrupt
+     * on average. Only runs if this is the scheduler in use.
+     */
+    public static void selfTest() {
+	if (!(ThreadedKernel.scheduler instanceof MLFQScheduler))
+	    return;
+
+	final int sleeps = 50;
+	final long end = Machine.timer().getTime() + (sleeps+10) * 1000;
+	final long[] latency = new long[1];
+	final Semaphore done = new Semaphore(0);
+
+	for (int i=0; i<3; i++) {
+	    new KThread(new Runnable() {
+		    public void run() {
+			while (Machine.timer().getTime() < end) {
+			    Machine.interrupt().disable();
+			    Machine.interrupt().enable();
+			}
+			done.V();
+		    }
+		}).setName("mlfq batch " + i).fork();
+	}
+
+	new KThread(new Runnable() {
+		public void run() {
+		    for (int i=0; i<sleeps; i++) {
+			long wake = Machine.timer().getTime() + 1000;
+			ThreadedKernel.alarm.waitUntil(1000);
+			latency[0] += Machine.timer().getTime() - wake;
+		    }
+		    done.V();
+		}
+	    }).setName("mlfq sleeper").fork();
+
+	for (int i=0; i<4; i++)
+	    done.P();
+
+	Lib.assertTrue(latency[0] / sleeps < Stats.TimerTicks);
+    }
+}
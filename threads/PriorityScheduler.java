@@ -2,10 +2,9 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.Random;
+
 /**
  * A scheduler that chooses threads based on their priorities.
  *
@@ -25,6 +24,13 @@ import java.util.LinkedList;
  * <p>
  * A priority scheduler must partially solve the priority inversion problem; in
  * particular, priority must be donated through locks, and through joins.
+ *
+ * <p>
+ * Donation is kept up to date as it changes, rather than recomputed when
+ * asked for. Each queue keeps its waiting threads in one bucket per priority
+ * level, and each thread counts the priorities donated to it at each level,
+ * so a change in a thread's effective priority costs O(log n) for each queue
+ * it passes through on its way along a chain of waiting threads.
  */
 public class PriorityScheduler extends Scheduler {
     /**
@@ -96,6 +102,10 @@ public class PriorityScheduler extends Scheduler {
 	return true;
     }
 
+    public boolean transfersPriority() {
+	return true;
+    }
+
     /**
      * The default priority for a new thread. Do not change this value.
      */
@@ -122,56 +132,60 @@ public class PriorityScheduler extends Scheduler {
 	return (ThreadState) thread.schedulingState;
     }
 
+    /**
+     * Return the highest level set in a bitmap of priority levels.
+     *
+     * @param	levels	a bitmap with bit <i>i</i> set for each level <i>i</i>.
+     * @return	the highest level set, or -1 if none are.
+     */
+    private static int highestLevel(int levels) {
+	return 31 - Integer.numberOfLeadingZeros(levels);
+    }
+
     /**
      * A <tt>ThreadQueue</tt> that sorts threads by priority.
+     *
+     * <p>
+     * Waiting threads are kept in one bucket per priority level, with a
+     * bitmap of the levels that are not empty, so the next thread is found
+     * without looking at the others. Each bucket is a heap ordered by the
+     * time its threads started waiting, so a thread whose effective priority
+     * changes can be moved to its new bucket at once. If this queue transfers
+     * priority, the highest level is donated to the thread holding this
+     * queue.
      */
-    
-    
-    
-    
-    
-    
-    
-    
-    
     protected class PriorityQueue extends ThreadQueue {
-	PriorityQueue(boolean transferPriority) {//ook
+	PriorityQueue(boolean transferPriority) {
 	    this.transferPriority = transferPriority;
-        priority_Wrong=false;
+
+	    for (int i=0; i<buckets.length; i++)
+		buckets[i] = new WaitHeap();
 	}
 
-	public void waitForAccess(KThread thread) {//ook
+	public void waitForAccess(KThread thread) {
 	    Lib.assertTrue(Machine.interrupt().disabled());
 	    getThreadState(thread).waitForAccess(this);
-        setWrong();
 	}
 
 	public void acquire(KThread thread) {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-        getThreadState(thread).acquire(this);
-    
+	    getThreadState(thread).acquire(this);
 	}
 
-	public KThread nextThread() {//ook
-         //       System.out.println("next:");
+	public KThread nextThread() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-        // implement me!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!
-        if (this.lockHolder != null && this.transferPriority)
-            this.lockHolder.Lockset.remove(this);
-        if (waitQueue.isEmpty())
-            return null;
-        KThread optimal_Thread = pickNextThread();
-        if (optimal_Thread!=null){
-            waitQueue.remove(optimal_Thread);
-            getThreadState(optimal_Thread).acquire(this);
-        }
-         //       System.out.println("HAHAHA");
-        
-     //   System.out.println( getThreadState(optimal_Thread).getEffectivePriority()+"HAHAHA");
-        return optimal_Thread;
-	}
-
-        
+
+	    // the holder gives up this queue, even if no one is waiting
+	    setHolder(null);
+
+	    ThreadState next = pickNext();
+	    if (next == null)
+		return null;
+
+	    next.acquire(this);
+	    return next.thread;
+	}
+
 	/**
 	 * Return the next thread that <tt>nextThread()</tt> would return,
 	 * without modifying the state of this queue.
@@ -179,82 +193,264 @@ public class PriorityScheduler extends Scheduler {
 	 * @return	the next thread that <tt>nextThread()</tt> would
 	 *		return.
 	 */
-	protected KThread pickNextThread() {//ook
-        // implement me!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!
-        KThread res=null;
-        int res_priority=0;
-        Iterator<KThread>  it=waitQueue.iterator();
-        while (it.hasNext()){
-      //      System.out.println("aa:");
-
-            KThread temp=it.next();
-            int temp_priority = getThreadState(temp).getEffectivePriority();
-            if (res==null || temp_priority>res_priority){
-                res=temp;
-                res_priority=temp_priority;
-            }
-      //      System.out.println("temp_priority:"+temp_priority);
-        }
-        return res;
+	protected KThread pickNextThread() {
+	    ThreadState next = pickNext();
+	    return (next == null) ? null : next.thread;
 	}
-	
+
 	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me (if you want)
-	}
-        
-    public int getEffectivePriority(){//ook
-    //    System.out.println("          WAAAAAA"+(transferPriority)+waitQueue.size());
-        if (transferPriority == false)
-            return priorityMinimum;
-   //     System.out.println("          In queue:"+Effective_priority);
-        if ( priority_Wrong==true){
-            Iterator<KThread> it=waitQueue.iterator();
-     //   System.out.println("          more in:");
-            while (it.hasNext()){
-                KThread temp=it.next();
-                int temp_priority=getThreadState(temp).getEffectivePriority();
-                if (temp_priority>Effective_priority)
-                    Effective_priority=temp_priority;
-            }
-            priority_Wrong=false;
-        }
-        return Effective_priority;
-    }
-    
-    public void setWrong() {//ook
-        if (transferPriority==true && priority_Wrong==false){
-            priority_Wrong = true;
-            if (lockHolder!=null)
-                lockHolder.setWrong();
-        }
-    }
-        
+
+	    for (int level=priorityMaximum; level>=priorityMinimum; level--) {
+		WaitHeap bucket = buckets[level];
+		for (int i=0; i<bucket.size; i++)
+		    System.out.print(bucket.states[i].thread + " ");
+	    }
+	}
+
+	private ThreadState pickNext() {
+	    if (nonEmpty == 0)
+		return null;
+
+	    return buckets[topLevel()].first();
+	}
+
+	/**
+	 * Return the threads waiting on this queue, in no particular order.
+	 *
+	 * @return	the waiting threads.
+	 */
+	ThreadState[] getWaiters() {
+	    int size = 0;
+	    for (int level=priorityMinimum; level<=priorityMaximum; level++)
+		size += buckets[level].size;
+
+	    ThreadState[] waiters = new ThreadState[size];
+	    int n = 0;
+	    for (int level=priorityMinimum; level<=priorityMaximum; level++) {
+		System.arraycopy(buckets[level].states, 0, waiters, n,
+				 buckets[level].size);
+		n += buckets[level].size;
+	    }
+
+	    return waiters;
+	}
+
+	/**
+	 * Add a thread to the bucket for its effective priority.
+	 */
+	void add(ThreadState state) {
+	    Lib.assertTrue(state.bucket == -1);
+
+	    state.waitSequence = numWaits++;
+	    state.queue = this;
+	    insert(state, state.effectivePriority);
+	    updateHolder();
+	}
+
+	/**
+	 * Take a thread out of its bucket.
+	 */
+	void remove(ThreadState state) {
+	    delete(state);
+	    state.queue = null;
+	    updateHolder();
+	}
+
+	/**
+	 * Move a waiting thread whose effective priority has changed to the
+	 * bucket for its new priority.
+	 *
+	 * @param	state	the waiting thread.
+	 * @return	the holder of this queue, if the priority it is donated
+	 *		changed as a result, or <tt>null</tt>.
+	 */
+	ThreadState rebucket(ThreadState state) {
+	    delete(state);
+	    insert(state, state.effectivePriority);
+
+	    return updateDonation();
+	}
+
+	/**
+	 * Give this queue to a new holder, moving its donation along.
+	 *
+	 * @param	state	the new holder, or <tt>null</tt>.
+	 */
+	void setHolder(ThreadState state) {
+	    ThreadState oldHolder = holder;
+	    holder = state;
+
+	    if (oldHolder != null) {
+		oldHolder.removeDonation(donation);
+		oldHolder.update();
+	    }
+	    if (state != null) {
+		state.addDonation(donation);
+		state.update();
+	    }
+	}
+
+	/**
+	 * Put a thread in the bucket for the specified priority. Its place
+	 * there is set by when it started waiting, so threads with equal
+	 * priorities leave in the order they arrived.
+	 */
+	private void insert(ThreadState state, int priority) {
+	    Lib.assertTrue(priority >= priorityMinimum &&
+			   priority <= priorityMaximum);
+
+	    buckets[priority].add(state);
+	    state.bucket = priority;
+	    nonEmpty |= 1 << priority;
+	}
+
+	private void delete(ThreadState state) {
+	    Lib.assertTrue(state.queue == this && state.bucket != -1);
+
+	    WaitHeap bucket = buckets[state.bucket];
+	    bucket.remove(state);
+	    if (bucket.size == 0)
+		nonEmpty &= ~(1 << state.bucket);
+
+	    state.bucket = -1;
+	}
+
+	/** Return the highest priority that has a waiting thread, or -1. */
+	private int topLevel() {
+	    return highestLevel(nonEmpty);
+	}
+
+	private void updateHolder() {
+	    ThreadState state = updateDonation();
+	    if (state != null)
+		state.update();
+	}
+
+	/**
+	 * Recompute the priority this queue donates, and pass any change on
+	 * to the holder's donation counts.
+	 *
+	 * @return	the holder, if its effective priority must be
+	 *		updated, or <tt>null</tt>.
+	 */
+	private ThreadState updateDonation() {
+	    int newDonation = transferPriority ? topLevel() : -1;
+	    if (newDonation == donation)
+		return null;
+
+	    int oldDonation = donation;
+	    donation = newDonation;
+
+	    if (holder == null)
+		return null;
+
+	    holder.removeDonation(oldDonation);
+	    holder.addDonation(newDonation);
+	    return holder;
+	}
+
 	/**
 	 * <tt>true</tt> if this queue should transfer priority from waiting
 	 * threads to the owning thread.
 	 */
 	public boolean transferPriority;
-    private boolean priority_Wrong;
-    private int Effective_priority;
-    private ThreadState lockHolder = null;
-    private LinkedList<KThread> waitQueue = new LinkedList<KThread>();
+
+	/** The waiting threads, by effective priority. */
+	private WaitHeap[] buckets = new WaitHeap[priorityMaximum+1];
+	/** Bit <i>i</i> is set if <tt>buckets[i]</tt> is not empty. */
+	private int nonEmpty = 0;
+	/** The number of threads that have ever waited on this queue. */
+	private long numWaits = 0;
+
+	/** The thread that last acquired this queue, or <tt>null</tt>. */
+	ThreadState holder = null;
+	/** The priority this queue donates to its holder, or -1. */
+	private int donation = -1;
+    }
+
+    /**
+     * The bucket of threads waiting at one priority level: a binary heap
+     * ordered by the time they started waiting. Each thread records its
+     * position, so it can be removed from the middle.
+     */
+    private static class WaitHeap {
+	ThreadState first() {
+	    return states[0];
+	}
+
+	void add(ThreadState state) {
+	    if (size == states.length)
+		states = Arrays.copyOf(states, size*2);
+
+	    states[size] = state;
+	    siftUp(size++);
+	}
+
+	void remove(ThreadState state) {
+	    int index = state.heapIndex;
+	    Lib.assertTrue(index >= 0 && index < size &&
+			   states[index] == state);
+
+	    ThreadState last = states[--size];
+	    states[size] = null;
+	    state.heapIndex = -1;
+
+	    if (index != size) {
+		states[index] = last;
+		if (last.waitSequence < state.waitSequence)
+		    siftUp(index);
+		else
+		    siftDown(index);
+	    }
+	}
+
+	private void siftUp(int index) {
+	    ThreadState state = states[index];
+
+	    while (index > 0) {
+		int parent = (index-1) / 2;
+		if (states[parent].waitSequence < state.waitSequence)
+		    break;
+
+		place(states[parent], index);
+		index = parent;
+	    }
+
+	    place(state, index);
+	}
+
+	private void siftDown(int index) {
+	    ThreadState state = states[index];
+
+	    while (true) {
+		int child = index*2 + 1;
+		if (child >= size)
+		    break;
+
+		if (child+1 < size &&
+		    states[child+1].waitSequence < states[child].waitSequence)
+		    child++;
+
+		if (state.waitSequence < states[child].waitSequence)
+		    break;
+
+		place(states[child], index);
+		index = child;
+	    }
+
+	    place(state, index);
+	}
+
+	private void place(ThreadState state, int index) {
+	    states[index] = state;
+	    state.heapIndex = index;
+	}
+
+	ThreadState[] states = new ThreadState[4];
+	int size = 0;
     }
 
-    
-    
-    
-    
-    
-    
-    
-    
-    
-    
-    
-    
-    
-    
     /**
      * The scheduling state of a thread. This should include the thread's
      * priority, its effective priority, any objects it owns, and the queue
@@ -280,7 +476,7 @@ public class PriorityScheduler extends Scheduler {
 	 *
 	 * @return	the priority of the associated thread.
 	 */
-	public int getPriority() {//ook
+	public int getPriority() {
 	    return priority;
 	}
 
@@ -289,45 +485,18 @@ public class PriorityScheduler extends Scheduler {
 	 *
 	 * @return	the effective priority of the associated thread.
 	 */
-	public int getEffectivePriority() {//ook
-        // implement me!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!
-     //   System.out.println("    In"+priority);
-        if (priority_Wrong==true){
-         //   System.out.println("    ReallIn?");
-            Effective_priority=priority;
-            Iterator it=Lockset.iterator();
-            while (it.hasNext()){
-                PriorityQueue temp=(PriorityQueue)(it.next());
-                int temp_priority=temp.getEffectivePriority();
-                if (temp_priority>Effective_priority)
-                    Effective_priority=temp_priority;
-         //       System.out.println("    nextStep?"+Effective_priority);
-            }
-            priority_Wrong=false;
-        }
-        return Effective_priority;
-    }
-        
-    public void setWrong(){//ook
-        // implement me!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!
-        if (priority_Wrong==true)
-           return;
-        priority_Wrong=true;
-        if (father_Thread!=null)
-            father_Thread.setWrong();
-    }
+	public int getEffectivePriority() {
+	    return effectivePriority;
+	}
+
 	/**
 	 * Set the priority of the associated thread to the specified value.
 	 *
 	 * @param	priority	the new priority.
 	 */
-	public void setPriority(int priority) {//ook
-	    if (this.priority == priority)
-            return;
+	public void setPriority(int priority) {
 	    this.priority = priority;
-        setWrong();
-	    // implement me!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!
-        //ok
+	    update();
 	}
 
 	/**
@@ -342,17 +511,15 @@ public class PriorityScheduler extends Scheduler {
 	 *
 	 * @see	nachos.threads.ThreadQueue#waitForAccess
 	 */
-	public void waitForAccess(PriorityQueue waitQueue) {//ook
-        // implement me!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!
-        waitQueue.waitQueue.add(thread);
-        father_Thread=waitQueue;
-        waitQueue.setWrong();
-        if (Lockset.indexOf(waitQueue)>=0){
-            Lockset.remove(waitQueue);
-            // System.out.println("  BIIIG error");
-            waitQueue.lockHolder=null;
-        }
-    }
+	public void waitForAccess(PriorityQueue waitQueue) {
+	    Lib.assertTrue(queue == null);
+
+	    // a thread waiting for something it holds has given it up
+	    if (waitQueue.holder == this)
+		waitQueue.setHolder(null);
+
+	    waitQueue.add(this);
+	}
 
 	/**
 	 * Called when the associated thread has acquired access to whatever is
@@ -364,26 +531,379 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#acquire
 	 * @see	nachos.threads.ThreadQueue#nextThread
 	 */
-	public void acquire(PriorityQueue waitQueue) {//ook
-        // implement me!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!
-
-        if (waitQueue.lockHolder!=null && waitQueue.transferPriority)
-            waitQueue.lockHolder.Lockset.remove(waitQueue);
-        waitQueue.lockHolder = this;
-        Lockset.add(waitQueue);
-        if (waitQueue==father_Thread)
-            father_Thread=null;
-        setWrong();
-    }
+	public void acquire(PriorityQueue waitQueue) {
+	    if (queue == waitQueue)
+		waitQueue.remove(this);
+
+	    waitQueue.setHolder(this);
+	}
+
+	void addDonation(int level) {
+	    if (level != -1 && donations[level]++ == 0)
+		donatedLevels |= 1 << level;
+	}
+
+	void removeDonation(int level) {
+	    if (level != -1 && --donations[level] == 0)
+		donatedLevels &= ~(1 << level);
+	}
+
+	/**
+	 * Recompute the effective priority of this thread, and carry any
+	 * change along the chain of threads holding the queues it waits on.
+	 * The chain is followed iteratively, so that a long one cannot
+	 * overflow the stack.
+	 */
+	void update() {
+	    ThreadState state = this;
+
+	    while (state != null) {
+		int effective = Math.max(state.priority,
+					 highestLevel(state.donatedLevels));
+		if (effective == state.effectivePriority)
+		    break;
+
+		state.effectivePriority = effective;
+
+		if (state.queue == null)
+		    break;
+
+		state = state.queue.rebucket(state);
+	    }
+	}
 
 	/** The thread with which this object is associated. */	   
 	protected KThread thread;
 	/** The priority of the associated thread. */
 	protected int priority;
-    protected int Effective_priority;
-    protected boolean priority_Wrong;
-    protected PriorityQueue father_Thread;
-    private LinkedList<ThreadQueue> Lockset = new LinkedList<ThreadQueue>();
+	/** The priority of the associated thread, including donations. */
+	protected int effectivePriority = -1;
+
+	/** The queue whose buckets hold this thread, or <tt>null</tt>. */
+	PriorityQueue queue = null;
+	/** The priority of the bucket holding this thread, or -1. */
+	int bucket = -1;
+	/** The number of queues held that donate each priority level. */
+	private int[] donations = new int[priorityMaximum+1];
+	/** Bit <i>i</i> is set if <tt>donations[i]</tt> is not zero. */
+	private int donatedLevels = 0;
+
+	/** The position of this thread in its <tt>WaitHeap</tt>, or -1. */
+	int heapIndex = -1;
+	/** The order in which this thread started waiting on its queue. */
+	long waitSequence;
+    }
+
+    /**
+     * Test donation along long chains of locks and into locks with many
+     * waiting threads.
+     */
+    public static void selfTest() {
+	// threads already carry the state of another kind of scheduler
+	Object state = new KThread().schedulingState;
+	if (state != null && !(state instanceof ThreadState))
+	    return;
+
+	PriorityScheduler scheduler = new PriorityScheduler();
+	boolean intStatus = Machine.interrupt().disable();
+
+	chainTest(scheduler, 1000);
+	fanInTest(scheduler, 1000, new Random(0));
+
+	Machine.interrupt().restore(intStatus);
+
+	// only this scheduler gives the kernel's threads these priorities
+	if (ThreadedKernel.scheduler.getClass() == PriorityScheduler.class) {
+	    synchronizationTest((PriorityScheduler) ThreadedKernel.scheduler);
+	    semaphoreTest((PriorityScheduler) ThreadedKernel.scheduler);
+	}
+    }
+
+    /**
+     * Thread <i>i</i> holds lock <i>i</i> and waits for lock <i>i</i>-1, so
+     * thread 0 inherits the highest priority of all of them.
+     */
+    private static void chainTest(PriorityScheduler scheduler, int length) {
+	KThread[] threads = new KThread[length];
+	ThreadQueue[] locks = new ThreadQueue[length];
+
+	for (int i=0; i<length; i++) {
+	    threads[i] = new KThread().setName("chain " + i);
+	    scheduler.setPriority(threads[i], priorityMinimum);
+	    locks[i] = scheduler.newThreadQueue(true);
+	    locks[i].acquire(threads[i]);
+	    if (i > 0)
+		locks[i-1].waitForAccess(threads[i]);
+	}
+
+	scheduler.setPriority(threads[length-1], priorityMaximum);
+	for (int i=0; i<length; i++)
+	    Lib.assertTrue(scheduler.getEffectivePriority(threads[i]) ==
+			   priorityMaximum);
+
+	scheduler.setPriority(threads[length/2], 3);
+	scheduler.setPriority(threads[length-1], priorityMinimum);
+	for (int i=0; i<length; i++)
+	    Lib.assertTrue(scheduler.getEffectivePriority(threads[i]) ==
+			   (i <= length/2 ? 3 : priorityMinimum));
+
+	// releasing a lock in the middle cuts the chain
+	Lib.assertTrue(locks[length/4].nextThread() == threads[length/4+1]);
+	for (int i=0; i<length; i++)
+	    Lib.assertTrue(scheduler.getEffectivePriority(threads[i]) ==
+			   (i > length/4 && i <= length/2 ?
+			    3 : priorityMinimum));
+    }
+
+    /**
+     * Many threads wait for one lock. The holder always has the highest
+     * priority among them, and they get the lock in priority order, first
+     * come first served among equals.
+     */
+    private static void fanInTest(PriorityScheduler scheduler, int width,
+				  Random random) {
+	KThread holder = new KThread().setName("holder");
+	scheduler.setPriority(holder, priorityMinimum);
+
+	ThreadQueue lock = scheduler.newThreadQueue(true);
+	ThreadQueue plain = scheduler.newThreadQueue(false);
+	lock.acquire(holder);
+	plain.acquire(holder);
+
+	KThread[] threads = new KThread[width];
+	int[] arrival = new int[width];
+	for (int i=0; i<width; i++) {
+	    threads[i] = new KThread().setName("waiter " + i);
+	    scheduler.setPriority(threads[i], random.nextInt(priorityMaximum));
+	    lock.waitForAccess(threads[i]);
+	    arrival[i] = i;
+	}
+
+	// a queue that does not transfer priority donates nothing
+	KThread high = new KThread().setName("high");
+	scheduler.setPriority(high, priorityMaximum);
+	plain.waitForAccess(high);
+
+	for (int n=0; n<width; n++) {
+	    scheduler.setPriority(threads[random.nextInt(width)],
+				  random.nextInt(priorityMaximum));
+	    Lib.assertTrue(scheduler.getEffectivePriority(holder) ==
+			   maxPriority(scheduler, threads));
+	}
+
+	for (int n=0; n<width; n++) {
+	    KThread next = lock.nextThread();
+	    int i = 0;
+	    while (threads[i] != next)
+		i++;
+
+	    int priority = scheduler.getPriority(next);
+	    for (int j=0; j<width; j++) {
+		if (threads[j] != null && threads[j] != next) {
+		    int other = scheduler.getPriority(threads[j]);
+		    Lib.assertTrue(other < priority ||
+				   (other == priority &&
+				    arrival[j] > arrival[i]));
+		}
+	    }
+
+	    threads[i] = null;
+	    Lib.assertTrue(scheduler.getEffectivePriority(next) ==
+			   Math.max(priority, maxPriority(scheduler, threads)));
+	}
+
+	Lib.assertTrue(scheduler.getEffectivePriority(holder) ==
+		       priorityMinimum);
+    }
+
+    /**
+     * With real threads, test that a thread waiting on a semaphore that
+     * transfers priority donates it to the owner, but not on a plain one,
+     * and that a condition variable wakes its highest priority thread first.
+     */
+    private static void synchronizationTest(PriorityScheduler scheduler) {
+	KThread current = KThread.currentThread();
+
+	boolean intStatus = Machine.interrupt().disable();
+	int priority = scheduler.getPriority(current);
+	Machine.interrupt().restore(intStatus);
+
+	for (int i=0; i<2; i++) {
+	    boolean transferPriority = (i == 1);
+	    final Semaphore mutex = new Semaphore(1, transferPriority);
+	    mutex.P();
+
+	    KThread waiter = new KThread(new Runnable() {
+		    public void run() {
+			mutex.P();
+			mutex.V();
+		    }
+		}).setName("semaphore waiter");
+
+	    intStatus = Machine.interrupt().disable();
+	    scheduler.setPriority(waiter, priorityMaximum);
+	    Machine.interrupt().restore(intStatus);
+
+	    // the waiter runs first, and blocks
+	    waiter.fork();
+	    KThread.yield();
+
+	    intStatus = Machine.interrupt().disable();
+	    Lib.assertTrue(scheduler.getEffectivePriority(current) ==
+			   (transferPriority ? priorityMaximum : priority));
+	    Machine.interrupt().restore(intStatus);
+
+	    mutex.V();
+	    waiter.join();
+
+	    intStatus = Machine.interrupt().disable();
+	    Lib.assertTrue(scheduler.getEffectivePriority(current) == priority);
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	final Lock lock = new Lock();
+	final Condition2 condition = new Condition2(lock);
+	final int[] woken = new int[1];
+	int[] priorities = { priority+1, priorityMaximum, priority+2 };
+	KThread[] sleepers = new KThread[priorities.length];
+
+	for (int i=0; i<sleepers.length; i++) {
+	    final int sleeperPriority = priorities[i];
+	    sleepers[i] = new KThread(new Runnable() {
+		    public void run() {
+			lock.acquire();
+			condition.sleep();
+			if (woken[0] == 0)
+			    woken[0] = sleeperPriority;
+			lock.release();
+		    }
+		}).setName("condition sleeper " + i);
+
+	    intStatus = Machine.interrupt().disable();
+	    scheduler.setPriority(sleepers[i], sleeperPriority);
+	    Machine.interrupt().restore(intStatus);
+
+	    sleepers[i].fork();
+	}
+
+	// the sleepers all run before this thread, and go to sleep
+	KThread.yield();
+
+	lock.acquire();
+	condition.wake();
+	lock.release();
+	KThread.yield();
+	Lib.assertTrue(woken[0] == priorityMaximum);
+
+	lock.acquire();
+	condition.wakeAll();
+	lock.release();
+	for (int i=0; i<sleepers.length; i++)
+	    sleepers[i].join();
+    }
+
+    /**
+     * With real threads, test that a binary semaphore that transfers
+     * priority raises its owner to the priority of a thread waiting in
+     * <tt>P()</tt>, that the owner drops back after <tt>V()</tt>, and that
+     * the semaphore and its donations then pass to the waiting thread.
+     */
+    private static void semaphoreTest(final PriorityScheduler scheduler) {
+	KThread current = KThread.currentThread();
+
+	// this thread only runs when every other thread has blocked
+	boolean intStatus = Machine.interrupt().disable();
+	int priority = scheduler.getPriority(current);
+	scheduler.setPriority(current, priorityMinimum);
+	Machine.interrupt().restore(intStatus);
+
+	final Semaphore mutex = new Semaphore(1, true);
+	final Semaphore ownerRelease = new Semaphore(0);
+	final Semaphore waiterRelease = new Semaphore(0);
+
+	final KThread owner = new KThread(new Runnable() {
+		public void run() {
+		    mutex.P();
+		    ownerRelease.P();
+		    mutex.V();
+		    Lib.assertTrue(getEffectivePriority(scheduler) == 1);
+		}
+	    }).setName("semaphore owner");
+
+	final KThread waiter = new KThread(new Runnable() {
+		public void run() {
+		    mutex.P();
+		    Lib.assertTrue(getEffectivePriority(scheduler) == 4);
+		    waiterRelease.P();
+		    mutex.V();
+		    Lib.assertTrue(getEffectivePriority(scheduler) == 4);
+		}
+	    }).setName("semaphore waiter");
+
+	KThread late = new KThread(new Runnable() {
+		public void run() {
+		    mutex.P();
+		    mutex.V();
+		}
+	    }).setName("semaphore late waiter");
+
+	intStatus = Machine.interrupt().disable();
+	scheduler.setPriority(owner, 1);
+	scheduler.setPriority(waiter, 4);
+	scheduler.setPriority(late, 6);
+	Machine.interrupt().restore(intStatus);
+
+	// the owner takes the semaphore, and the waiter raises it
+	owner.fork();
+	KThread.yield();
+	waiter.fork();
+	KThread.yield();
+
+	intStatus = Machine.interrupt().disable();
+	Lib.assertTrue(scheduler.getEffectivePriority(owner) == 4);
+	Machine.interrupt().restore(intStatus);
+
+	// the owner gives the semaphore to the waiter, and drops back
+	ownerRelease.V();
+	KThread.yield();
+
+	// the late waiter now raises the waiter, not the old owner
+	late.fork();
+	KThread.yield();
+
+	intStatus = Machine.interrupt().disable();
+	Lib.assertTrue(scheduler.getEffectivePriority(waiter) == 6);
+	Machine.interrupt().restore(intStatus);
+
+	waiterRelease.V();
+	owner.join();
+	waiter.join();
+	late.join();
+
+	intStatus = Machine.interrupt().disable();
+	scheduler.setPriority(current, priority);
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the effective priority of the current thread.
+     */
+    private static int getEffectivePriority(PriorityScheduler scheduler) {
+	boolean intStatus = Machine.interrupt().disable();
+	int priority = scheduler.getEffectivePriority(KThread.currentThread());
+	Machine.interrupt().restore(intStatus);
+
+	return priority;
+    }
+
+    private static int maxPriority(PriorityScheduler scheduler,
+				   KThread[] threads) {
+	int max = priorityMinimum;
+	for (int i=0; i<threads.length; i++) {
+	    if (threads[i] != null)
+		max = Math.max(max, scheduler.getPriority(threads[i]));
+	}
 
+	return max;
     }
 }
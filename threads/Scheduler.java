@@ -154,4 +154,39 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
 	return false;
     }
+
+    /**
+     * Return <tt>true</tt> if this scheduler's queues that transfer priority
+     * keep track of the thread holding them, and donate to it. A queue of a
+     * scheduler that does not may only be acquired when no thread waits on
+     * it.
+     *
+     * @return	<tt>true</tt> if this scheduler donates priority.
+     */
+    public boolean transfersPriority() {
+	return false;
+    }
+
+    /**
+     * Called by the alarm on each timer interrupt, with interrupts disabled,
+     * to decide whether to preempt the current thread. A scheduler that
+     * gives threads time slices longer than one timer interrupt can return
+     * <tt>false</tt> to let the current thread keep running.
+     *
+     * @param	thread	the current thread.
+     * @return	<tt>true</tt> if the current thread should yield.
+     */
+    public boolean quantumExpired(KThread thread) {
+	return true;
+    }
+
+    /**
+     * Called by <tt>KThread.finish()</tt>, with interrupts disabled, when a
+     * thread finishes. A scheduler that keeps state about threads outside
+     * their <tt>schedulingState</tt> can let go of it here.
+     *
+     * @param	thread	the thread that is finishing.
+     */
+    public void threadFinished(KThread thread) {
+    }
 }
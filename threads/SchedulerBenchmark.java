@@ -0,0 +1,230 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A kernel that measures the cost of the thread queues of each scheduler.
+ *
+ * <p>
+ * To run it, set <tt>Kernel.kernel</tt> to
+ * <tt>nachos.threads.SchedulerBenchmark</tt> in <tt>nachos.conf</tt>. The
+ * benchmark drives each scheduler's queues directly, with synthetic threads
+ * that never run, and keeps interrupts disabled throughout, so the timer
+ * never fires and no context switch or simulated time is counted. For each
+ * scheduler, it reports:
+ *
+ * <ul>
+ * <li>the time to take a thread from a queue with <i>n</i> waiting threads of
+ * random priorities and put it back, changing its priority every eighth
+ * time, as a ready queue is used;
+ * <li>the heap each waiting thread takes in such a queue, which is only
+ * reported for 100000 or more threads, since the heap can only be measured
+ * to within about a megabyte; and
+ * <li>the time to change the priority of a thread waiting for a lock at the
+ * end of a chain of threads holding locks and waiting for each other, which
+ * a scheduler that donates priority must pass down the chain. This is only
+ * measured for schedulers that donate priority, since for any other it is
+ * just the cost of a priority change.
+ * </ul>
+ *
+ * <p>
+ * The schedulers to measure are set by <tt>SchedulerBenchmark.schedulers</tt>,
+ * a comma-separated list of class names, the numbers of waiting threads by
+ * <tt>SchedulerBenchmark.threads</tt>, the lengths of the donation chains by
+ * <tt>SchedulerBenchmark.chainDepths</tt>, and the number of operations timed
+ * in each measurement by <tt>SchedulerBenchmark.operations</tt>. Each
+ * measurement is preceded by as many untimed operations, so the JIT compiler
+ * can warm up.
+ */
+public class SchedulerBenchmark extends ThreadedKernel {
+    /**
+     * Allocate a new scheduler benchmark.
+     */
+    public SchedulerBenchmark() {
+	super();
+    }
+
+    /**
+     * Initialize this kernel, and read the configuration of the benchmark.
+     */
+    public void initialize(String[] args) {
+	super.initialize(args);
+
+	schedulerNames =
+	    Config.getString("SchedulerBenchmark.schedulers",
+			     "nachos.threads.RoundRobinScheduler," +
+			     "nachos.threads.PriorityScheduler," +
+			     "nachos.threads.LotteryScheduler," +
+			     "nachos.threads.StrideScheduler," +
+			     "nachos.threads.MLFQScheduler," +
+			     "nachos.threads.FairScheduler," +
+			     "nachos.threads.EDFScheduler").split(",");
+
+	numThreads = parseList("SchedulerBenchmark.threads",
+			       "10,100,1000,10000,100000");
+	chainDepths = parseList("SchedulerBenchmark.chainDepths",
+				"1,4,16,64");
+
+	operations = Config.getInteger("SchedulerBenchmark.operations", 200000);
+	Lib.assertTrue(operations > 0);
+    }
+
+    /**
+     * The benchmark does not run the kernel's self tests.
+     */
+    public void selfTest() {
+    }
+
+    /**
+     * Run the benchmark.
+     */
+    public void run() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int maxThreads = 0;
+	for (int i=0; i<numThreads.length; i++)
+	    maxThreads = Math.max(maxThreads, numThreads[i]);
+	for (int i=0; i<chainDepths.length; i++)
+	    maxThreads = Math.max(maxThreads, chainDepths[i]+1);
+
+	threads = new KThread[maxThreads];
+	for (int i=0; i<threads.length; i++)
+	    threads[i] = new KThread().setName("benchmark " + i);
+
+	// the priorities used are valid under every scheduler
+	priorities = new int[1024];
+	for (int i=0; i<priorities.length; i++)
+	    priorities[i] = 1 + Lib.random(7);
+
+	for (int i=0; i<schedulerNames.length; i++) {
+	    String name = schedulerNames[i].trim();
+	    Scheduler scheduler = (Scheduler) Lib.constructObject(name);
+
+	    for (int j=0; j<numThreads.length; j++)
+		benchmarkQueue(name, scheduler, numThreads[j]);
+
+	    if (scheduler.transfersPriority()) {
+		for (int j=0; j<chainDepths.length; j++)
+		    benchmarkChain(name, scheduler, chainDepths[j]);
+	    }
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Time taking threads from a queue of <i>n</i> waiting threads and putting
+     * them back.
+     */
+    private void benchmarkQueue(String name, Scheduler scheduler, int n) {
+	clearSchedulingState(n);
+
+	long heap = usedHeap();
+
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	for (int i=0; i<n; i++) {
+	    scheduler.setPriority(threads[i],
+				  priorities[i % priorities.length]);
+	    queue.waitForAccess(threads[i]);
+	}
+
+	long bytes = (usedHeap() - heap) / n;
+
+	cycleQueue(scheduler, queue);
+	long time = System.nanoTime();
+	cycleQueue(scheduler, queue);
+	time = System.nanoTime() - time;
+
+	while (queue.nextThread() != null)
+	    ;
+
+	System.out.println(name + ": " + n + " waiting, " +
+			   time / operations + " ns/op" +
+			   (n >= 100000 ? ", " + bytes + " bytes/thread" : ""));
+    }
+
+    private void cycleQueue(Scheduler scheduler, ThreadQueue queue) {
+	for (int i=0; i<operations; i++) {
+	    KThread thread = queue.nextThread();
+	    Lib.assertTrue(thread != null);
+
+	    if (i % 8 == 0) {
+		scheduler.setPriority(thread,
+				      priorities[i % priorities.length]);
+	    }
+
+	    queue.waitForAccess(thread);
+	}
+    }
+
+    /**
+     * Time changing the priority of a thread waiting for a lock at the end of
+     * a chain of <i>depth</i> threads, each holding a lock and, but for the
+     * first, waiting for the lock held by the one before it.
+     */
+    private void benchmarkChain(String name, Scheduler scheduler,
+				int depth) {
+	clearSchedulingState(depth+1);
+
+	// the holders start below every donation, so each change goes through
+	ThreadQueue[] locks = new ThreadQueue[depth];
+	for (int i=0; i<depth; i++) {
+	    scheduler.setPriority(threads[i], 1);
+	    locks[i] = scheduler.newThreadQueue(true);
+	    locks[i].acquire(threads[i]);
+	    if (i > 0)
+		locks[i-1].waitForAccess(threads[i]);
+	}
+
+	KThread donor = threads[depth];
+	locks[depth-1].waitForAccess(donor);
+
+	cycleChain(scheduler, donor);
+	long time = System.nanoTime();
+	cycleChain(scheduler, donor);
+	time = System.nanoTime() - time;
+
+	System.out.println(name + ": donation chain of " + depth + ", " +
+			   time / operations + " ns/op");
+    }
+
+    private void cycleChain(Scheduler scheduler, KThread donor) {
+	for (int i=0; i<operations; i++)
+	    scheduler.setPriority(donor, priorities[i % priorities.length]);
+    }
+
+    /**
+     * Clear the scheduling state of the first <i>n</i> threads, which may
+     * belong to another scheduler or to an earlier measurement.
+     */
+    private void clearSchedulingState(int n) {
+	for (int i=0; i<n; i++)
+	    threads[i].schedulingState = null;
+    }
+
+    private static long usedHeap() {
+	Runtime runtime = Runtime.getRuntime();
+	runtime.gc();
+	return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static int[] parseList(String key, String defaultValue) {
+	String[] values = Config.getString(key, defaultValue).split(",");
+
+	int[] list = new int[values.length];
+	for (int i=0; i<list.length; i++) {
+	    list[i] = Integer.parseInt(values[i].trim());
+	    Lib.assertTrue(list[i] > 0, key + " must be positive");
+	}
+
+	return list;
+    }
+
+    private String[] schedulerNames;
+    private int[] numThreads;
+    private int[] chainDepths;
+    private int operations;
+
+    private KThread[] threads;
+    private int[] priorities;
+}
@@ -28,7 +28,29 @@ public class Semaphore {
      * @param	initialValue	the initial value of this semaphore.
      */
     public Semaphore(int initialValue) {
+	this(initialValue, false);
+    }
+
+    /**
+     * Allocate a new semaphore that may transfer priority to its owner.
+     *
+     * <p>
+     * If <tt>transferPriority</tt> is <tt>true</tt>, the thread that last
+     * returned from <tt>P()</tt> owns this semaphore until the next
+     * <tt>V()</tt>, and threads waiting in <tt>P()</tt> donate their priority
+     * to it, as they would to the holder of a <tt>Lock</tt>. This only makes
+     * sense for a semaphore with an initial value of 1 that is used as a
+     * lock, so that the owner is the thread that will call <tt>V()</tt>.
+     *
+     * @param	initialValue	the initial value of this semaphore.
+     * @param	transferPriority	<tt>true</tt> if threads waiting in
+     *					<tt>P()</tt> should donate priority to
+     *					the owner.
+     */
+    public Semaphore(int initialValue, boolean transferPriority) {
 	value = initialValue;
+	this.transferPriority = transferPriority;
+	waitQueue = ThreadedKernel.scheduler.newThreadQueue(transferPriority);
     }
 
     /**
@@ -43,6 +65,8 @@ public class Semaphore {
 	}
 	else {
 	    value--;
+	    if (transferPriority)
+		waitQueue.acquire(KThread.currentThread());
 	}
 
 	Machine.interrupt().restore(intStatus);
@@ -99,6 +123,6 @@ public class Semaphore {
     }
 
     private int value;
-    private ThreadQueue waitQueue =
-	ThreadedKernel.scheduler.newThreadQueue(false);
+    private boolean transferPriority;
+    private ThreadQueue waitQueue;
 }
@@ -0,0 +1,430 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A scheduler that divides the CPU among threads in proportion to their
+ * tickets, deterministically.
+ *
+ * <p>
+ * A stride scheduler associates a number of tickets with each thread. A
+ * thread's <i>stride</i> is inversely proportional to its tickets, and its
+ * <i>pass</i> advances by its stride for every tick it runs. The next thread
+ * to be dequeued is always the one with the lowest pass, first come first
+ * served among equals, so over any interval each thread runs for close to
+ * its share of the time, without the short-term variance of a lottery.
+ *
+ * <p>
+ * A thread that starts waiting on a queue has its pass raised to the pass of
+ * the thread most recently dequeued from that queue, so that a thread cannot
+ * bank credit while it is blocked and then monopolize the CPU.
+ *
+ * <p>
+ * Like a lottery scheduler, a stride scheduler transfers tickets through
+ * queues that transfer priority, and these tickets add: a thread holding a
+ * lock runs with the tickets of every thread waiting for it.
+ */
+public class StrideScheduler extends Scheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer tickets from waiting threads
+     *					to the owning thread.
+     * @return	a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new StrideQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).tickets;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return (int) Math.min(getThreadState(thread).effectiveTickets,
+			      Integer.MAX_VALUE);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		       priority <= priorityMaximum);
+
+	getThreadState(thread).setTickets(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != priorityMaximum);
+	if (changed)
+	    setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != priorityMinimum);
+	if (changed)
+	    setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean transfersPriority() {
+	return true;
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 100;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have. A thread with
+     * this many tickets has a stride of 1.
+     */
+    public static final int priorityMaximum = 1 << 20;
+
+    /**
+     * The stride of a thread with a single ticket.
+     */
+    private static final long stride1 = priorityMaximum;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Add tickets to a thread, and to every thread it is donating to along
+     * the chain of queues it waits on.
+     */
+    private static void addTickets(ThreadState state, long delta) {
+	while (state != null && delta != 0) {
+	    state.effectiveTickets += delta;
+
+	    StrideQueue queue = state.waitingOn;
+	    if (queue == null || !queue.transferPriority)
+		break;
+
+	    queue.donation += delta;
+	    state = queue.holder;
+	}
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that dequeues the waiting thread with the
+     * lowest pass. Waiting threads are kept in a binary min-heap.
+     */
+    protected class StrideQueue extends ThreadQueue {
+	StrideQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getThreadState(thread).waitForAccess(this);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getThreadState(thread).acquire(this);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    // the holder gives up this queue, even if no one is waiting
+	    setHolder(null);
+
+	    if (size == 0)
+		return null;
+
+	    ThreadState next = states[0];
+	    states[0] = states[--size];
+	    states[size] = null;
+	    if (size > 0)
+		siftDown(0);
+
+	    virtualPass = next.pass;
+	    next.waitingOn = null;
+	    if (transferPriority)
+		donation -= next.effectiveTickets;
+
+	    next.acquire(this);
+	    return next.thread;
+	}
+
+	/**
+	 * Return the next thread that <tt>nextThread()</tt> would return,
+	 * without modifying the state of this queue.
+	 *
+	 * @return	the next thread that <tt>nextThread()</tt> would
+	 *		return.
+	 */
+	protected KThread pickNextThread() {
+	    return (size == 0) ? null : states[0].thread;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<size; i++)
+		System.out.print(states[i].thread + "(" + states[i].pass + ") ");
+	}
+
+	void add(ThreadState state) {
+	    state.pass = Math.max(state.pass, virtualPass);
+	    state.waitSequence = numWaits++;
+
+	    if (size == states.length)
+		states = Arrays.copyOf(states, size*2);
+
+	    states[size] = state;
+	    siftUp(size++);
+
+	    if (transferPriority) {
+		donation += state.effectiveTickets;
+		addTickets(holder, state.effectiveTickets);
+	    }
+	}
+
+	/**
+	 * Give this queue to a new holder, moving its donation along.
+	 *
+	 * @param	state	the new holder, or <tt>null</tt>.
+	 */
+	void setHolder(ThreadState state) {
+	    ThreadState oldHolder = holder;
+	    holder = state;
+
+	    addTickets(oldHolder, -donation);
+	    addTickets(state, donation);
+	}
+
+	private boolean before(ThreadState a, ThreadState b) {
+	    if (a.pass != b.pass)
+		return a.pass < b.pass;
+	    else
+		return a.waitSequence < b.waitSequence;
+	}
+
+	private void siftUp(int index) {
+	    ThreadState state = states[index];
+
+	    while (index > 0) {
+		int parent = (index-1) / 2;
+		if (!before(state, states[parent]))
+		    break;
+
+		states[index] = states[parent];
+		index = parent;
+	    }
+
+	    states[index] = state;
+	}
+
+	private void siftDown(int index) {
+	    ThreadState state = states[index];
+
+	    while (true) {
+		int child = index*2 + 1;
+		if (child >= size)
+		    break;
+
+		if (child+1 < size && before(states[child+1], states[child]))
+		    child++;
+
+		if (!before(states[child], state))
+		    break;
+
+		states[index] = states[child];
+		index = child;
+	    }
+
+	    states[index] = state;
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	/** The waiting threads, as a heap ordered by pass. */
+	private ThreadState[] states = new ThreadState[4];
+	private int size = 0;
+	/** The number of threads that have ever waited on this queue. */
+	private long numWaits = 0;
+	/** The pass of the thread most recently dequeued. */
+	private long virtualPass = 0;
+
+	/** The thread that last acquired this queue, or <tt>null</tt>. */
+	ThreadState holder = null;
+	/** The tickets this queue donates to its holder. */
+	long donation = 0;
+    }
+
+    /**
+     * The scheduling state of a thread under a stride scheduler: its
+     * tickets, the tickets donated to it, and its pass.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	    this.chargedTicks = thread.getRunTicks();
+
+	    setTickets(priorityDefault);
+	}
+
+	/**
+	 * Set the number of tickets of the associated thread.
+	 *
+	 * @param	tickets	the new number of tickets.
+	 */
+	public void setTickets(int tickets) {
+	    long delta = (long) tickets - this.tickets;
+	    this.tickets = tickets;
+	    addTickets(this, delta);
+	}
+
+	/**
+	 * Called when the associated thread starts waiting on a queue. The
+	 * thread is first charged for the ticks it has run since it was last
+	 * charged.
+	 *
+	 * @param	waitQueue	the queue that the associated thread is
+	 *				now waiting on.
+	 */
+	public void waitForAccess(StrideQueue waitQueue) {
+	    Lib.assertTrue(waitingOn == null);
+
+	    // a thread waiting for something it holds has given it up
+	    if (waitQueue.holder == this)
+		waitQueue.setHolder(null);
+
+	    long runTicks = thread.getRunTicks();
+	    pass += (runTicks - chargedTicks) *
+		Math.max(stride1 / effectiveTickets, 1);
+	    chargedTicks = runTicks;
+
+	    waitingOn = waitQueue;
+	    waitQueue.add(this);
+	}
+
+	/**
+	 * Called when the associated thread has acquired access to whatever is
+	 * guarded by <tt>waitQueue</tt>.
+	 *
+	 * @param	waitQueue	the queue the thread has acquired.
+	 */
+	public void acquire(StrideQueue waitQueue) {
+	    Lib.assertTrue(waitingOn == null);
+
+	    waitQueue.setHolder(this);
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The tickets of the associated thread. */
+	protected int tickets = 0;
+	/** The tickets of the associated thread, including donations. */
+	protected long effectiveTickets = 0;
+	/** The pass of the associated thread. */
+	protected long pass = 0;
+
+	/** The queue this thread is waiting on, or <tt>null</tt>. */
+	StrideQueue waitingOn = null;
+	/** The order in which this thread started waiting on its queue. */
+	long waitSequence;
+	/** The run time of the thread when it was last charged. */
+	private long chargedTicks;
+    }
+
+    /**
+     * Test that three threads spinning for the CPU run for times in
+     * proportion to their tickets. Only runs if this is the scheduler in
+     * use.
+     */
+    public static void selfTest() {
+	if (!(ThreadedKernel.scheduler instanceof StrideScheduler))
+	    return;
+
+	final long end = Machine.timer().getTime() + 200000;
+	final Semaphore done = new Semaphore(0);
+	KThread[] threads = new KThread[3];
+
+	for (int i=0; i<threads.length; i++) {
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			while (Machine.timer().getTime() < end) {
+			    Machine.interrupt().disable();
+			    Machine.interrupt().enable();
+			}
+			done.V();
+		    }
+		}).setName("stride " + i);
+
+	    boolean intStatus = Machine.interrupt().disable();
+	    ThreadedKernel.scheduler.setPriority(threads[i], (i+1) * 100);
+	    Machine.interrupt().restore(intStatus);
+
+	    threads[i].fork();
+	}
+
+	// joining would donate this thread's tickets to the one joined
+	for (int i=0; i<threads.length; i++)
+	    done.P();
+
+	long share = threads[0].getRunTicks();
+	for (int i=1; i<threads.length; i++) {
+	    long expected = share * (i+1);
+	    Lib.assertTrue(Math.abs(threads[i].getRunTicks() - expected) <
+			   expected / 10);
+	}
+    }
+}
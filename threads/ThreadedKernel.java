@@ -16,6 +16,10 @@ public class ThreadedKernel extends Kernel {
     /**
      * Initialize this kernel. Creates a scheduler, the first thread, and an
      * alarm, and enables interrupts. Creates a file system if necessary.   
+     * If <tt>ThreadedKernel.threadStats</tt> is set, the accounting of every
+     * thread is printed when the machine halts, and if
+     * <tt>ThreadedKernel.traceLatency</tt> is set, so are the percentiles of
+     * every thread's scheduling latency, run lengths, and lock wait times.
      */
     public void initialize(String[] args) {
 	// set scheduler
@@ -32,6 +36,23 @@ public class ThreadedKernel extends Kernel {
 	    fileSystem = null;
 
 	// start threading
+	if (Config.getBoolean("ThreadedKernel.threadStats", false)) {
+	    KThread.recordStats();
+
+	    // user programs halt the machine without terminating the kernel
+	    Machine.addHaltHandler(new Runnable() {
+		    public void run() { KThread.printStats(); }
+		});
+	}
+
+	if (Config.getBoolean("ThreadedKernel.traceLatency", false)) {
+	    KThread.recordLatency();
+
+	    Machine.addHaltHandler(new Runnable() {
+		    public void run() { KThread.printLatency(); }
+		});
+	}
+
 	new KThread(null);
 
 	alarm  = new Alarm();
@@ -41,14 +62,26 @@ public class ThreadedKernel extends Kernel {
 
     /**
      * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
-     * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
-     * autograder never calls this method, so it is safe to put additional
-     * tests here.
+     * <tt>Lock</tt>, <tt>Alarm</tt>, <tt>SynchList</tt>,
+     * <tt>Communicator</tt>, <tt>PriorityScheduler</tt>,
+     * <tt>LotteryScheduler</tt>, <tt>StrideScheduler</tt>,
+     * <tt>MLFQScheduler</tt>, <tt>FairScheduler</tt>, <tt>EDFScheduler</tt>,
+     * and <tt>ElevatorBank</tt> classes. Note that the autograder never calls
+     * this method, so it is safe to put additional tests here.
      */	
     public void selfTest() {
 	KThread.selfTest();
 	Semaphore.selfTest();
+	Lock.selfTest();
+	Alarm.selfTest();
 	SynchList.selfTest();
+	Communicator.selfTest();
+	PriorityScheduler.selfTest();
+	LotteryScheduler.selfTest();
+	StrideScheduler.selfTest();
+	MLFQScheduler.selfTest();
+	FairScheduler.selfTest();
+	EDFScheduler.selfTest();
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
 	}
@@ -131,14 +131,15 @@ public class UserProcess {
 				 int length) {
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-	byte[] memory = Machine.processor().getMemory();
+	Processor processor = Machine.processor();
+	int memorySize = processor.getNumPhysPages() * pageSize;
 	
 	// for now, just assume that virtual addresses equal physical addresses
-	if (vaddr < 0 || vaddr >= memory.length)
+	if (vaddr < 0 || vaddr >= memorySize)
 	    return 0;
 
-	int amount = Math.min(length, memory.length-vaddr);
-	System.arraycopy(memory, vaddr, data, offset, amount);
+	int amount = Math.min(length, memorySize-vaddr);
+	processor.readMemory(vaddr, data, offset, amount);
 
 	return amount;
     }
@@ -174,14 +175,15 @@ public class UserProcess {
 				  int length) {
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-	byte[] memory = Machine.processor().getMemory();
+	Processor processor = Machine.processor();
+	int memorySize = processor.getNumPhysPages() * pageSize;
 	
 	// for now, just assume that virtual addresses equal physical addresses
-	if (vaddr < 0 || vaddr >= memory.length)
+	if (vaddr < 0 || vaddr >= memorySize)
 	    return 0;
 
-	int amount = Math.min(length, memory.length-vaddr);
-	System.arraycopy(data, offset, memory, vaddr, amount);
+	int amount = Math.min(length, memorySize-vaddr);
+	processor.writeMemory(vaddr, data, offset, amount);
 
 	return amount;
     }